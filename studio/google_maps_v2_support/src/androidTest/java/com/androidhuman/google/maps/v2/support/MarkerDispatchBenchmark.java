@@ -0,0 +1,136 @@
+/*
+ * Copyright 2013 Taeho Kim (jyte82@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.androidhuman.google.maps.v2.support;
+
+import java.util.Random;
+
+import android.content.Context;
+import android.test.InstrumentationTestCase;
+import android.util.Log;
+
+import com.androidhuman.google.maps.v2.support.SupportGoogleMap.SupportOnMarkerDragListener;
+import com.google.android.gms.common.ConnectionResult;
+import com.google.android.gms.common.GooglePlayServicesUtil;
+import com.google.android.gms.maps.GoogleMap;
+import com.google.android.gms.maps.MapView;
+import com.google.android.gms.maps.MapsInitializer;
+import com.google.android.gms.maps.model.LatLng;
+import com.google.android.gms.maps.model.Marker;
+import com.google.android.gms.maps.model.MarkerOptions;
+
+/**
+ * Measures the cost of dispatching marker drag events against the number of markers,
+ * which should not grow with it as markers are found through the Marker-to-id index.<p>
+ * Needs Google Play services on the device. Results are logged with the tag {@value #TAG}.
+ * @author Taeho Kim
+ *
+ */
+public class MarkerDispatchBenchmark extends InstrumentationTestCase {
+	private static final String TAG = "gmap_v2_support_bench";
+
+	private static final int[] MARKER_COUNTS = { 1000, 5000, 20000 };
+	private static final int EVENT_COUNT = 10000;
+	// Allowed growth of the cost per event from the smallest to the largest marker count, for timing noise
+	private static final double MAX_SLOWDOWN = 4;
+
+	private GoogleMap mGoogleMap;
+
+	public void testDragDispatchCostDoesNotGrowWithMarkerCount() throws Throwable {
+		final double[] nanosPerEvent = new double[MARKER_COUNTS.length];
+		runTestOnUiThread(new Runnable() {
+			@Override
+			public void run() {
+				mGoogleMap = createMap(getInstrumentation().getTargetContext());
+				if(mGoogleMap==null){
+					return;
+				}
+				for(int i=0; i<MARKER_COUNTS.length; i++){
+					nanosPerEvent[i] = measureDragDispatch(MARKER_COUNTS[i]);
+					Log.i(TAG, MARKER_COUNTS[i]+" markers: "+nanosPerEvent[i]+"ns per drag event");
+				}
+			}
+		});
+		if(mGoogleMap==null){
+			Log.w(TAG, "Google Play services is not available, benchmark skipped.");
+			return;
+		}
+		double slowdown = nanosPerEvent[nanosPerEvent.length - 1] / nanosPerEvent[0];
+		assertTrue("Dispatch got "+slowdown+" times slower with more markers.", slowdown<=MAX_SLOWDOWN);
+	}
+
+	private double measureDragDispatch(int markerCount){
+		MarkerManager manager = new MarkerManager(mGoogleMap);
+		manager.setOnMarkerDragListener(new SupportOnMarkerDragListener() {
+			@Override
+			public void onMarkerDragStart(long id, Marker marker) {
+			}
+
+			@Override
+			public void onMarkerDragEnd(long id, Marker marker) {
+			}
+
+			@Override
+			public void onMarkerDrag(long id, Marker marker) {
+			}
+		});
+
+		Random random = new Random(markerCount);
+		Marker[] markers = new Marker[markerCount];
+		for(int i=0; i<markerCount; i++){
+			LatLng position = new LatLng(random.nextDouble() * 160 - 80, random.nextDouble() * 360 - 180);
+			long id = manager.add(new MarkerOptions().position(position)).getId();
+			markers[i] = manager.getMarker(id);
+		}
+
+		// Warm up, then measure
+		dispatchDrags(manager, markers, random, EVENT_COUNT / 10);
+		long start = System.nanoTime();
+		dispatchDrags(manager, markers, random, EVENT_COUNT);
+		long elapsed = System.nanoTime() - start;
+
+		manager.clear(true);
+		// Each drag is made of three events
+		return (double)elapsed / (EVENT_COUNT * 3);
+	}
+
+	private static void dispatchDrags(MarkerManager manager, Marker[] markers, Random random, int count){
+		for(int i=0; i<count; i++){
+			Marker marker = markers[random.nextInt(markers.length)];
+			manager.onMarkerDragStart(marker);
+			manager.onMarkerDrag(marker);
+			manager.onMarkerDragEnd(marker);
+		}
+	}
+
+	/**
+	 * Creates a map off screen, or returns null if Google Play services can't provide one.
+	 */
+	private static GoogleMap createMap(Context context){
+		if(GooglePlayServicesUtil.isGooglePlayServicesAvailable(context)!=ConnectionResult.SUCCESS){
+			return null;
+		}
+		try{
+			MapsInitializer.initialize(context);
+			MapView view = new MapView(context);
+			view.onCreate(null);
+			return view.getMap();
+		}catch(Exception e){
+			Log.w(TAG, "Failed to create a map.", e);
+			return null;
+		}
+	}
+}
@@ -0,0 +1,66 @@
+/*
+ * Copyright 2013 Taeho Kim (jyte82@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.androidhuman.google.maps.v2.support;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import android.os.Process;
+
+/**
+ * Creates executors for work moved off the main thread.
+ */
+class BackgroundExecutors {
+
+	private BackgroundExecutors(){
+	}
+
+	/**
+	 * Returns an executor running tasks one at a time on a daemon thread with background priority.
+	 * @param name Name of the thread
+	 */
+	static ExecutorService newSingleThreadExecutor(String name){
+		return Executors.newSingleThreadExecutor(newThreadFactory(name));
+	}
+
+	/**
+	 * Returns an executor running each task on its own daemon thread with background priority,
+	 * reusing idle threads. Suits tasks that may block for a long time.
+	 * @param name Name of the threads
+	 */
+	static ExecutorService newCachedThreadPool(String name){
+		return Executors.newCachedThreadPool(newThreadFactory(name));
+	}
+
+	private static ThreadFactory newThreadFactory(final String name){
+		return new ThreadFactory() {
+			@Override
+			public Thread newThread(final Runnable r) {
+				Thread thread = new Thread(new Runnable() {
+					@Override
+					public void run() {
+						Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+						r.run();
+					}
+				}, name);
+				thread.setDaemon(true);
+				return thread;
+			}
+		};
+	}
+}
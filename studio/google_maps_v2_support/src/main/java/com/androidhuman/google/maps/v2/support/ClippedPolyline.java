@@ -0,0 +1,364 @@
+/*
+ * Copyright 2013 Taeho Kim (jyte82@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.androidhuman.google.maps.v2.support;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import com.google.android.gms.maps.GoogleMap;
+import com.google.android.gms.maps.model.CameraPosition;
+import com.google.android.gms.maps.model.LatLng;
+import com.google.android.gms.maps.model.LatLngBounds;
+import com.google.android.gms.maps.model.Polyline;
+import com.google.android.gms.maps.model.PolylineOptions;
+
+/**
+ * Polyline keeping every point, but drawn only where it meets the camera bounds plus a margin.<p>
+ * Points are indexed by chunks of consecutive points, each with its bounding box.
+ * Runs of chunks meeting the clip bounds are drawn as separate polylines of a bounded number of chunks,
+ * reused from one clip to the next and updated only when their range changed. The clip is computed again
+ * once the camera has been idle for a while, and only if the visible region left the clip bounds
+ * or became much smaller than them.<p>
+ * Appending points only checks the chunks they fall into. While the end of the line stays inside
+ * the clip bounds, only the last run is updated, as the last segment of a segmented polyline would be,
+ * whatever the length of the line. Points appended outside the clip bounds are not drawn at all.
+ * The whole clip is drawn again only when an append goes back into the clip bounds from outside of them.
+ */
+class ClippedPolyline extends ManagedPolyline {
+	static final float DEFAULT_MARGIN = 0.5f;
+
+	// Points per chunk of the index
+	private static final int CHUNK_SIZE = 64;
+	// Chunks per drawn run, bounding the cost of updating the last run on append
+	private static final int MAX_RUN_CHUNKS = 8;
+	private static final int MAX_RUN_POINTS = MAX_RUN_CHUNKS * CHUNK_SIZE;
+	// Time the camera should stay still before clipping again
+	private static final long IDLE_DELAY_MS = 250;
+	// Clip again when the visible region spans less than this fraction of the clip bounds
+	private static final double MIN_VISIBLE_FRACTION = 0.25;
+
+	private GoogleMap mGoogleMap;
+	private PolylineOptions mStyle;
+	private float mMargin;
+	private Handler mHandler;
+	private ArrayList<LatLng> mPoints;
+
+	// Bounding box of each chunk, which also covers the first point of the next chunk
+	private double[] mSouths;
+	private double[] mNorths;
+	private double[] mWests;
+	private double[] mEasts;
+	private boolean[] mIsWrapping;
+
+	private LatLngBounds mClipBounds;
+	private ArrayList<Polyline> mRuns;
+	// First and last point index of each drawn run
+	private LongList mRunRanges;
+	private boolean mIsCancelled;
+
+	private Runnable mClipper = new Runnable() {
+		@Override
+		public void run() {
+			if(!mIsCancelled){
+				clipIfNeeded();
+			}
+		}
+	};
+
+	ClippedPolyline(GoogleMap map, PolylineOptions options, float margin){
+		if(margin<0){
+			throw new IllegalArgumentException("Margin should not be negative.");
+		}
+		mGoogleMap = map;
+		mStyle = PolylineOptionsUtils.copyStyle(options);
+		mMargin = margin;
+		mHandler = new Handler(Looper.getMainLooper());
+		mPoints = new ArrayList<LatLng>();
+		mRuns = new ArrayList<Polyline>();
+		mRunRanges = new LongList();
+		int capacity = 16;
+		mSouths = new double[capacity];
+		mNorths = new double[capacity];
+		mWests = new double[capacity];
+		mEasts = new double[capacity];
+		mIsWrapping = new boolean[capacity];
+		addPoints(options.getPoints());
+		clip();
+	}
+
+	@Override
+	void append(LatLng point){
+		appendAll(Collections.singletonList(point));
+	}
+
+	@Override
+	void appendAll(List<LatLng> points){
+		int oldCount = mPoints.size();
+		addPoints(points);
+		if(mIsCancelled){
+			// Gone from map with a clear, so nothing is drawn anymore
+			return;
+		}
+		if(mClipBounds!=null && !drawAppended(oldCount)){
+			draw();
+		}
+	}
+
+	@Override
+	List<LatLng> getPoints(){
+		return new ArrayList<LatLng>(mPoints);
+	}
+
+	@Override
+	int getPointCount(){
+		return mPoints.size();
+	}
+
+	/**
+	 * Returns the number of points currently drawn on map.
+	 */
+	int getDrawnPointCount(){
+		int count = 0;
+		for(int i=0; i<mRunRanges.size(); i+=2){
+			count += mRunRanges.get(i + 1) - mRunRanges.get(i) + 1;
+		}
+		return count;
+	}
+
+	@Override
+	List<Polyline> getPolylines(){
+		return mRuns;
+	}
+
+	@Override
+	void remove(){
+		cancel();
+		for(Polyline run : mRuns){
+			run.remove();
+		}
+		mRuns.clear();
+		mRunRanges.clear();
+	}
+
+	@Override
+	void cancel(){
+		mIsCancelled = true;
+		mHandler.removeCallbacks(mClipper);
+	}
+
+	@Override
+	void onCameraChange(CameraPosition position){
+		if(mIsCancelled){
+			return;
+		}
+		mHandler.removeCallbacks(mClipper);
+		mHandler.postDelayed(mClipper, IDLE_DELAY_MS);
+	}
+
+	private void clipIfNeeded(){
+		LatLngBounds visible = mGoogleMap.getProjection().getVisibleRegion().latLngBounds;
+		if(mClipBounds!=null && contains(mClipBounds, visible)
+				&& latitudeSpan(visible)>=latitudeSpan(mClipBounds) * MIN_VISIBLE_FRACTION
+				&& longitudeSpan(visible)>=longitudeSpan(mClipBounds) * MIN_VISIBLE_FRACTION){
+			return;
+		}
+		clip();
+	}
+
+	private void clip(){
+		LatLngBounds visible = mGoogleMap.getProjection().getVisibleRegion().latLngBounds;
+		mClipBounds = GeoUtils.expandBounds(visible, mMargin);
+		draw();
+	}
+
+	/**
+	 * Draws the runs of chunks meeting the clip bounds, updating only the runs whose range changed.
+	 */
+	private void draw(){
+		LongList ranges = new LongList();
+		int chunkCount = getChunkCount();
+		int runStart = -1;
+		for(int chunk=0; chunk<=chunkCount; chunk++){
+			boolean isInside = chunk<chunkCount && intersects(chunk);
+			if(runStart>=0 && (!isInside || chunk - runStart==MAX_RUN_CHUNKS)){
+				ranges.add(runStart * CHUNK_SIZE);
+				ranges.add(Math.min(chunk * CHUNK_SIZE, mPoints.size() - 1));
+				runStart = -1;
+			}
+			if(isInside && runStart<0){
+				runStart = chunk;
+			}
+		}
+
+		int runCount = ranges.size() / 2;
+		for(int i=0; i<runCount; i++){
+			drawRun(i, (int)ranges.get(i * 2), (int)ranges.get(i * 2 + 1));
+		}
+		while(mRuns.size()>runCount){
+			mRuns.remove(mRuns.size() - 1).remove();
+		}
+		mRunRanges = ranges;
+	}
+
+	/**
+	 * Draws points appended after given count, touching only the last runs.
+	 * @return false if the whole clip should be drawn again instead.
+	 */
+	private boolean drawAppended(int oldCount){
+		if(oldCount==0){
+			return false;
+		}
+		// Chunks of the segments ending at the appended points
+		int firstChunk = (oldCount - 1) / CHUNK_SIZE;
+		int chunkCount = getChunkCount();
+		int insideCount = 0;
+		for(int chunk=firstChunk; chunk<chunkCount; chunk++){
+			if(intersects(chunk)){
+				insideCount++;
+			}
+		}
+		int runCount = mRunRanges.size() / 2;
+		boolean isTailDrawn = runCount>0 && mRunRanges.get(runCount * 2 - 1)==oldCount - 1;
+		if(insideCount==0){
+			// A chunk meeting the clip bounds still does, so the drawn runs didn't change
+			return true;
+		}
+		if(!isTailDrawn || insideCount<chunkCount - firstChunk){
+			return false;
+		}
+
+		// Extend the last run, splitting it as draw() would
+		int run = runCount - 1;
+		int from = (int)mRunRanges.get(run * 2);
+		int to = mPoints.size() - 1;
+		while(to - from>MAX_RUN_POINTS){
+			drawRun(run, from, from + MAX_RUN_POINTS);
+			setRunRange(run, from, from + MAX_RUN_POINTS);
+			from += MAX_RUN_POINTS;
+			run++;
+		}
+		drawRun(run, from, to);
+		setRunRange(run, from, to);
+		return true;
+	}
+
+	/**
+	 * Puts the points of a run on map, adding its polyline if needed,
+	 * unless the run is already drawn with the same range.
+	 */
+	private void drawRun(int run, int from, int to){
+		if(run<mRuns.size() && run * 2<mRunRanges.size()
+				&& mRunRanges.get(run * 2)==from && mRunRanges.get(run * 2 + 1)==to){
+			return;
+		}
+		List<LatLng> points = new ArrayList<LatLng>(mPoints.subList(from, to + 1));
+		if(run>=mRuns.size()){
+			mRuns.add(mGoogleMap.addPolyline(PolylineOptionsUtils.copyStyle(mStyle).addAll(points)));
+		}else{
+			mRuns.get(run).setPoints(points);
+		}
+	}
+
+	private void setRunRange(int run, int from, int to){
+		if(run * 2<mRunRanges.size()){
+			mRunRanges.set(run * 2, from);
+			mRunRanges.set(run * 2 + 1, to);
+		}else{
+			mRunRanges.add(from);
+			mRunRanges.add(to);
+		}
+	}
+
+	private int getChunkCount(){
+		// The last point only closes the previous chunk
+		return mPoints.size()<2 ? 0 : (mPoints.size() - 2) / CHUNK_SIZE + 1;
+	}
+
+	private boolean intersects(int chunk){
+		double south = mClipBounds.southwest.latitude;
+		double north = mClipBounds.northeast.latitude;
+		double west = mClipBounds.southwest.longitude;
+		double east = mClipBounds.northeast.longitude;
+		boolean isCrossing = west>east;
+		if(mNorths[chunk]<south || mSouths[chunk]>north){
+			return false;
+		}
+		if(mIsWrapping[chunk]){
+			return true;
+		}
+		if(isCrossing){
+			return mEasts[chunk]>=west || mWests[chunk]<=east;
+		}
+		return mEasts[chunk]>=west && mWests[chunk]<=east;
+	}
+
+	/**
+	 * Adds points and extends the bounding boxes of the chunks they fall into.
+	 */
+	private void addPoints(List<LatLng> points){
+		for(LatLng point : points){
+			int index = mPoints.size();
+			mPoints.add(point);
+			if(index==0){
+				continue;
+			}
+			// Chunk of the segment ending at this point
+			int chunk = (index - 1) / CHUNK_SIZE;
+			if(chunk>=mSouths.length){
+				int capacity = mSouths.length * 2;
+				mSouths = Arrays.copyOf(mSouths, capacity);
+				mNorths = Arrays.copyOf(mNorths, capacity);
+				mWests = Arrays.copyOf(mWests, capacity);
+				mEasts = Arrays.copyOf(mEasts, capacity);
+				mIsWrapping = Arrays.copyOf(mIsWrapping, capacity);
+			}
+			LatLng previous = mPoints.get(index - 1);
+			if((index - 1) % CHUNK_SIZE==0){
+				mSouths[chunk] = mNorths[chunk] = previous.latitude;
+				mWests[chunk] = mEasts[chunk] = previous.longitude;
+				mIsWrapping[chunk] = false;
+			}
+			mSouths[chunk] = Math.min(mSouths[chunk], point.latitude);
+			mNorths[chunk] = Math.max(mNorths[chunk], point.latitude);
+			mWests[chunk] = Math.min(mWests[chunk], point.longitude);
+			mEasts[chunk] = Math.max(mEasts[chunk], point.longitude);
+			if(Math.abs(point.longitude - previous.longitude)>180){
+				// The segment crosses the antimeridian, its box would span the wrong way around
+				mIsWrapping[chunk] = true;
+			}
+		}
+	}
+
+	private static boolean contains(LatLngBounds outer, LatLngBounds inner){
+		return outer.contains(inner.southwest) && outer.contains(inner.northeast)
+				&& longitudeSpan(inner)<=longitudeSpan(outer);
+	}
+
+	private static double latitudeSpan(LatLngBounds bounds){
+		return bounds.northeast.latitude - bounds.southwest.latitude;
+	}
+
+	private static double longitudeSpan(LatLngBounds bounds){
+		double span = bounds.northeast.longitude - bounds.southwest.longitude;
+		return span<0 ? span + 360 : span;
+	}
+}
@@ -0,0 +1,143 @@
+/*
+ * Copyright 2013 Taeho Kim (jyte82@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.androidhuman.google.maps.v2.support;
+
+import android.annotation.TargetApi;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.view.Choreographer;
+
+/**
+ * Calls back once on the next frame, on the main thread.<p>
+ * Uses {@link Choreographer} where available, and falls back to a {@link Handler}
+ * posting at the display refresh interval on older platforms.
+ * Requesting a frame again before it is delivered has no effect, so a callback that has more work
+ * to do simply calls {@link #requestFrame()} again.
+ * @author Taeho Kim
+ *
+ */
+abstract class FrameTicker {
+	private static final long FALLBACK_FRAME_INTERVAL_MS = 16;
+
+	/**
+	 * Receives frames requested from a {@link FrameTicker}.
+	 */
+	interface Callback {
+
+		/**
+		 * Called on the main thread when a frame is rendered.
+		 * @param frameTimeMillis Time of the frame, in the {@link SystemClock#uptimeMillis()} time base.
+		 */
+		void onFrame(long frameTimeMillis);
+	}
+
+	final Callback mCallback;
+	boolean mIsRequested;
+
+	FrameTicker(Callback callback){
+		mCallback = callback;
+	}
+
+	static FrameTicker create(Callback callback){
+		if(Build.VERSION.SDK_INT>=Build.VERSION_CODES.JELLY_BEAN){
+			return new ChoreographerTicker(callback);
+		}
+		return new HandlerTicker(callback);
+	}
+
+	/**
+	 * Requests a callback on the next frame.
+	 */
+	void requestFrame(){
+		if(!mIsRequested){
+			mIsRequested = true;
+			post();
+		}
+	}
+
+	/**
+	 * Cancels the requested frame, if any.
+	 */
+	void cancel(){
+		if(mIsRequested){
+			mIsRequested = false;
+			unpost();
+		}
+	}
+
+	boolean isFrameRequested(){
+		return mIsRequested;
+	}
+
+	void dispatchFrame(long frameTimeMillis){
+		mIsRequested = false;
+		mCallback.onFrame(frameTimeMillis);
+	}
+
+	abstract void post();
+
+	abstract void unpost();
+
+	@TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+	private static class ChoreographerTicker extends FrameTicker implements Choreographer.FrameCallback {
+
+		ChoreographerTicker(Callback callback){
+			super(callback);
+		}
+
+		@Override
+		void post(){
+			Choreographer.getInstance().postFrameCallback(this);
+		}
+
+		@Override
+		void unpost(){
+			Choreographer.getInstance().removeFrameCallback(this);
+		}
+
+		@Override
+		public void doFrame(long frameTimeNanos) {
+			dispatchFrame(frameTimeNanos / 1000000);
+		}
+	}
+
+	private static class HandlerTicker extends FrameTicker implements Runnable {
+		private Handler mHandler;
+
+		HandlerTicker(Callback callback){
+			super(callback);
+			mHandler = new Handler(Looper.getMainLooper());
+		}
+
+		@Override
+		void post(){
+			mHandler.postDelayed(this, FALLBACK_FRAME_INTERVAL_MS);
+		}
+
+		@Override
+		void unpost(){
+			mHandler.removeCallbacks(this);
+		}
+
+		@Override
+		public void run() {
+			dispatchFrame(SystemClock.uptimeMillis());
+		}
+	}
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright 2013 Taeho Kim (jyte82@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.androidhuman.google.maps.v2.support;
+
+import com.google.android.gms.maps.model.LatLng;
+import com.google.android.gms.maps.model.LatLngBounds;
+
+/**
+ * Geometry helpers working on plain latitude/longitude values.
+ */
+class GeoUtils {
+	static final double EARTH_RADIUS = 6371009;
+
+	private GeoUtils(){
+	}
+
+	/**
+	 * Returns the great-circle distance between two points, in meters.
+	 */
+	static double distanceBetween(double lat1, double lng1, double lat2, double lng2){
+		double phi1 = Math.toRadians(lat1);
+		double phi2 = Math.toRadians(lat2);
+		double sinDLat = Math.sin((phi2 - phi1) / 2);
+		double sinDLng = Math.sin(Math.toRadians(lng2 - lng1) / 2);
+		double h = sinDLat * sinDLat + Math.cos(phi1) * Math.cos(phi2) * sinDLng * sinDLng;
+		return 2 * EARTH_RADIUS * Math.asin(Math.min(1, Math.sqrt(h)));
+	}
+
+	/**
+	 * Returns the latitude span, in degrees, covered by given distance along a meridian.
+	 */
+	static double latitudeSpan(double meters){
+		return Math.toDegrees(meters / EARTH_RADIUS);
+	}
+
+	/**
+	 * Returns the largest longitude offset, in degrees, of the circle of given radius
+	 * centered at given latitude. Returns 360 if the circle covers every longitude.
+	 */
+	static double longitudeSpan(double latitude, double meters){
+		double sinRadius = Math.sin(Math.min(meters / EARTH_RADIUS, Math.PI / 2));
+		double cosLat = Math.cos(Math.toRadians(latitude));
+		if(sinRadius>=cosLat){
+			return 360;
+		}
+		return Math.toDegrees(Math.asin(sinRadius / cosLat));
+	}
+
+	/**
+	 * Returns bounds grown on each side by given fraction of their height and width.
+	 * Longitudes are wrapped, so the result may cross the antimeridian.
+	 */
+	static LatLngBounds expandBounds(LatLngBounds bounds, float fraction){
+		double south = bounds.southwest.latitude;
+		double north = bounds.northeast.latitude;
+		double west = bounds.southwest.longitude;
+		double east = bounds.northeast.longitude;
+
+		double latMargin = (north - south) * fraction;
+		south = Math.max(-90, south - latMargin);
+		north = Math.min(90, north + latMargin);
+
+		double lngSpan = east - west;
+		if(lngSpan<0){
+			lngSpan += 360;
+		}
+		double lngMargin = lngSpan * fraction;
+		if(lngSpan + lngMargin * 2>=360){
+			west = -180;
+			east = 180;
+		}else{
+			west = wrapLongitude(west - lngMargin);
+			east = wrapLongitude(east + lngMargin);
+		}
+		return new LatLngBounds(new LatLng(south, west), new LatLng(north, east));
+	}
+
+	static double wrapLongitude(double longitude){
+		if(longitude>=-180 && longitude<=180){
+			return longitude;
+		}
+		return ((longitude + 180) % 360 + 360) % 360 - 180;
+	}
+}
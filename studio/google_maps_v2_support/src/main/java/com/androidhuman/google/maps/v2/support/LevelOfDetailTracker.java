@@ -0,0 +1,129 @@
+/*
+ * Copyright 2013 Taeho Kim (jyte82@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.androidhuman.google.maps.v2.support;
+
+import java.util.HashMap;
+
+import com.google.android.gms.maps.model.BitmapDescriptor;
+
+/**
+ * Keeps track of the {@link MarkerLevelOfDetail} rule of each marker in a {@link MarkerManager}.<p>
+ * Markers are grouped by rule, and each group remembers its level at the current zoom level.
+ * When the zoom changes, only the groups whose level changed have their markers updated,
+ * so zooming within a band touches no marker at all.
+ */
+class LevelOfDetailTracker {
+	private MarkerManager mMarkerManager;
+	private HashMap<MarkerLevelOfDetail, Group> mGroups;
+	private LongObjectRegistry<Group> mGroupOfMarker;
+	private float mZoom;
+
+	LevelOfDetailTracker(MarkerManager manager, float zoom){
+		mMarkerManager = manager;
+		mGroups = new HashMap<MarkerLevelOfDetail, Group>();
+		mGroupOfMarker = new LongObjectRegistry<Group>();
+		mZoom = zoom;
+	}
+
+	/**
+	 * Sets the rule of a marker, without touching the marker.
+	 * @return The icon of the marker at the current zoom level, or null to keep its icon.
+	 */
+	BitmapDescriptor attach(long id, MarkerLevelOfDetail rule){
+		detach(id);
+		Group group = mGroups.get(rule);
+		if(group==null){
+			group = new Group(rule, rule.levelAt(mZoom));
+			mGroups.put(rule, group);
+		}
+		group.ids.put(id, Boolean.TRUE);
+		mGroupOfMarker.put(id, group);
+		return getIcon(group);
+	}
+
+	void detach(long id){
+		Group group = mGroupOfMarker.remove(id);
+		if(group!=null){
+			group.ids.remove(id);
+			if(group.ids.isEmpty()){
+				mGroups.remove(group.rule);
+			}
+		}
+	}
+
+	/**
+	 * Returns whether a marker should not exist at the current zoom level.
+	 */
+	boolean isHidden(long id){
+		Group group = mGroupOfMarker.get(id);
+		return group!=null && group.level==MarkerLevelOfDetail.LEVEL_HIDDEN;
+	}
+
+	boolean isEmpty(){
+		return mGroupOfMarker.isEmpty();
+	}
+
+	void clear(){
+		mGroups.clear();
+		mGroupOfMarker.clear();
+	}
+
+	/**
+	 * Updates the markers of every rule whose level changed at given zoom level.
+	 */
+	void onZoomChange(float zoom){
+		if(zoom==mZoom){
+			return;
+		}
+		mZoom = zoom;
+
+		for(Group group : mGroups.values()){
+			int level = group.rule.levelAt(zoom);
+			if(level==group.level){
+				continue;
+			}
+			group.level = level;
+			BitmapDescriptor icon = getIcon(group);
+			for(int slot=group.ids.firstSlot(); slot>=0; slot=group.ids.nextSlot(slot)){
+				mMarkerManager.applyLevelOfDetail(group.ids.keyAt(slot), icon);
+			}
+		}
+	}
+
+	private BitmapDescriptor getIcon(Group group){
+		if(group.level==MarkerLevelOfDetail.LEVEL_HIDDEN || !group.rule.hasBands()){
+			return null;
+		}
+		String styleKey = group.rule.getStyleKey(group.level);
+		if(styleKey!=null){
+			return mMarkerManager.getIcon(styleKey);
+		}
+		return group.rule.getIcon(group.level);
+	}
+
+	private static class Group {
+		final MarkerLevelOfDetail rule;
+		final LongObjectRegistry<Boolean> ids;
+		int level;
+
+		Group(MarkerLevelOfDetail rule, int level){
+			this.rule = rule;
+			this.level = level;
+			this.ids = new LongObjectRegistry<Boolean>();
+		}
+	}
+}
@@ -0,0 +1,88 @@
+/*
+ * Copyright 2013 Taeho Kim (jyte82@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.androidhuman.google.maps.v2.support;
+
+import java.util.Arrays;
+
+/**
+ * Growable array of primitive longs, used to collect ids without boxing.
+ */
+class LongList {
+	private long[] mValues;
+	private int mSize;
+
+	LongList(){
+		this(16);
+	}
+
+	LongList(int capacity){
+		mValues = new long[Math.max(capacity, 1)];
+	}
+
+	void add(long value){
+		if(mSize==mValues.length){
+			mValues = Arrays.copyOf(mValues, mSize * 2);
+		}
+		mValues[mSize++] = value;
+	}
+
+	long get(int index){
+		if(index>=mSize){
+			throw new IndexOutOfBoundsException("index="+index+", size="+mSize);
+		}
+		return mValues[index];
+	}
+
+	void set(int index, long value){
+		if(index>=mSize){
+			throw new IndexOutOfBoundsException("index="+index+", size="+mSize);
+		}
+		mValues[index] = value;
+	}
+
+	/**
+	 * Removes the value at given index, shifting the following values.
+	 */
+	void removeAt(int index){
+		if(index>=mSize){
+			throw new IndexOutOfBoundsException("index="+index+", size="+mSize);
+		}
+		System.arraycopy(mValues, index + 1, mValues, index, mSize - index - 1);
+		mSize--;
+	}
+
+	/**
+	 * Drops every value from given index.
+	 */
+	void truncate(int size){
+		if(size<mSize){
+			mSize = size;
+		}
+	}
+
+	int size(){
+		return mSize;
+	}
+
+	void clear(){
+		mSize = 0;
+	}
+
+	long[] toArray(){
+		return Arrays.copyOf(mValues, mSize);
+	}
+}
@@ -0,0 +1,232 @@
+/*
+ * Copyright 2013 Taeho Kim (jyte82@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.androidhuman.google.maps.v2.support;
+
+import java.util.Arrays;
+
+/**
+ * Map from primitive long ids to objects, used to keep markers and polylines by their ids.<p>
+ * Entries are kept in open-addressed arrays with linear probing, so neither lookups nor
+ * insertions box the key or allocate an entry object. Null values are not allowed.<p>
+ * It also hands out ids from a monotonic counter: an id returned by {@link #newId()} is never
+ * returned again, and is always greater than any id put in the registry so far.<p>
+ * Entries are iterated by slot:
+ * <pre>
+ * for(int slot = registry.firstSlot(); slot>=0; slot = registry.nextSlot(slot)){
+ *     long id = registry.keyAt(slot);
+ *     V value = registry.valueAt(slot);
+ * }
+ * </pre>
+ * The registry should not be modified while iterating.
+ */
+class LongObjectRegistry<V> {
+	private static final int MIN_CAPACITY = 16;
+
+	private long[] mKeys;
+	private Object[] mValues;
+	private int mMask;
+	private int mSize;
+	private long mNextId;
+
+	LongObjectRegistry(){
+		this(MIN_CAPACITY);
+	}
+
+	LongObjectRegistry(int expectedSize){
+		int capacity = MIN_CAPACITY;
+		while(capacity<expectedSize * 2){
+			capacity <<= 1;
+		}
+		allocate(capacity);
+	}
+
+	/**
+	 * Returns a new id that is not used by any entry, and was never returned before.
+	 */
+	long newId(){
+		return mNextId++;
+	}
+
+	/**
+	 * Makes sure given id is never returned by {@link #newId()}.
+	 */
+	void reserveId(long id){
+		if(id>=mNextId && id!=Long.MAX_VALUE){
+			mNextId = id + 1;
+		}
+	}
+
+	V get(long key){
+		int slot = findSlot(key);
+		return slot>=0 ? valueAt(slot) : null;
+	}
+
+	boolean containsKey(long key){
+		return findSlot(key)>=0;
+	}
+
+	/**
+	 * Puts an entry.
+	 * @return The value previously associated with the key, or null.
+	 */
+	V put(long key, V value){
+		if(value==null){
+			throw new NullPointerException("Value should not be null.");
+		}
+		reserveId(key);
+		int slot = indexFor(key);
+		while(mValues[slot]!=null){
+			if(mKeys[slot]==key){
+				V old = valueAt(slot);
+				mValues[slot] = value;
+				return old;
+			}
+			slot = (slot + 1) & mMask;
+		}
+		mKeys[slot] = key;
+		mValues[slot] = value;
+		mSize++;
+		if(mSize * 2>mValues.length){
+			resize(mValues.length * 2);
+		}
+		return null;
+	}
+
+	/**
+	 * Removes an entry.
+	 * @return The value that was associated with the key, or null.
+	 */
+	V remove(long key){
+		int slot = findSlot(key);
+		if(slot<0){
+			return null;
+		}
+		V old = valueAt(slot);
+		mValues[slot] = null;
+		mSize--;
+
+		// Shift back the following entries of the probe sequence, so that lookups never stop early
+		int hole = slot;
+		int next = slot;
+		while(true){
+			next = (next + 1) & mMask;
+			if(mValues[next]==null){
+				break;
+			}
+			int home = indexFor(mKeys[next]);
+			boolean isBetween = hole<=next ? (hole<home && home<=next) : (hole<home || home<=next);
+			if(!isBetween){
+				mKeys[hole] = mKeys[next];
+				mValues[hole] = mValues[next];
+				mValues[next] = null;
+				hole = next;
+			}
+		}
+		return old;
+	}
+
+	int size(){
+		return mSize;
+	}
+
+	boolean isEmpty(){
+		return mSize==0;
+	}
+
+	/**
+	 * Removes every entry. Ids handed out so far are not reused.
+	 */
+	void clear(){
+		Arrays.fill(mValues, null);
+		mSize = 0;
+	}
+
+	int firstSlot(){
+		return nextSlot(-1);
+	}
+
+	/**
+	 * Returns the next occupied slot after given one, or -1 if there is none.
+	 */
+	int nextSlot(int slot){
+		for(int i=slot + 1; i<mValues.length; i++){
+			if(mValues[i]!=null){
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	long keyAt(int slot){
+		return mKeys[slot];
+	}
+
+	@SuppressWarnings("unchecked")
+	V valueAt(int slot){
+		return (V)mValues[slot];
+	}
+
+	/**
+	 * Copies every key into a new array.
+	 */
+	long[] keys(){
+		long[] keys = new long[mSize];
+		int i = 0;
+		for(int slot=firstSlot(); slot>=0; slot=nextSlot(slot)){
+			keys[i++] = mKeys[slot];
+		}
+		return keys;
+	}
+
+	private int findSlot(long key){
+		int slot = indexFor(key);
+		while(mValues[slot]!=null){
+			if(mKeys[slot]==key){
+				return slot;
+			}
+			slot = (slot + 1) & mMask;
+		}
+		return -1;
+	}
+
+	private int indexFor(long key){
+		long hash = key * 0x9E3779B97F4A7C15L;
+		return (int)(hash ^ (hash>>>32)) & mMask;
+	}
+
+	private void allocate(int capacity){
+		mKeys = new long[capacity];
+		mValues = new Object[capacity];
+		mMask = capacity - 1;
+	}
+
+	private void resize(int capacity){
+		long[] oldKeys = mKeys;
+		Object[] oldValues = mValues;
+		allocate(capacity);
+		for(int i=0; i<oldValues.length; i++){
+			if(oldValues[i]!=null){
+				int slot = indexFor(oldKeys[i]);
+				while(mValues[slot]!=null){
+					slot = (slot + 1) & mMask;
+				}
+				mKeys[slot] = oldKeys[i];
+				mValues[slot] = oldValues[i];
+			}
+		}
+	}
+}
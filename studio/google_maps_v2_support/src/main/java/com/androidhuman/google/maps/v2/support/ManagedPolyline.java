@@ -0,0 +1,67 @@
+/*
+ * Copyright 2013 Taeho Kim (jyte82@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.androidhuman.google.maps.v2.support;
+
+import java.util.List;
+
+import com.google.android.gms.maps.model.CameraPosition;
+import com.google.android.gms.maps.model.LatLng;
+import com.google.android.gms.maps.model.Polyline;
+
+/**
+ * Polyline of a {@link PolylineManager} that keeps its own points, and decides
+ * how they are drawn with one or more {@link Polyline}s on map.
+ */
+abstract class ManagedPolyline {
+
+	abstract void append(LatLng point);
+
+	abstract void appendAll(List<LatLng> points);
+
+	/**
+	 * Returns a copy of every point of the line.
+	 */
+	abstract List<LatLng> getPoints();
+
+	abstract int getPointCount();
+
+	/**
+	 * Returns the polylines on map the line is currently drawn with.
+	 */
+	abstract List<Polyline> getPolylines();
+
+	/**
+	 * Removes the line from map.
+	 */
+	abstract void remove();
+
+	/**
+	 * Stops pending work of the line, leaving it on map as it is.
+	 */
+	void cancel(){
+	}
+
+	boolean contains(Polyline polyline){
+		return getPolylines().contains(polyline);
+	}
+
+	/**
+	 * Called when the camera changes, on the main thread.
+	 */
+	void onCameraChange(CameraPosition position){
+	}
+}
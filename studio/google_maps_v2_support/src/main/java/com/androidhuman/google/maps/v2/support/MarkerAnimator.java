@@ -0,0 +1,310 @@
+/*
+ * Copyright 2013 Taeho Kim (jyte82@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.androidhuman.google.maps.v2.support;
+
+import android.os.SystemClock;
+
+import com.google.android.gms.maps.model.LatLng;
+import com.google.android.gms.maps.model.Marker;
+
+/**
+ * Moves markers of a {@link MarkerManager} smoothly toward their target position and rotation.<p>
+ * Every animation is driven by a single {@link FrameTicker}, and the state of each animation
+ * is kept in parallel primitive arrays, so a frame allocates nothing but the positions
+ * handed to {@link Marker#setPosition(LatLng)}.
+ * A frame moves at most a limited number of markers, taking turns between frames;
+ * since the progress is computed from time, a marker skipped in a frame simply catches up on the next one.<p>
+ * Animated positions are visual only. The manager keeps the start position until
+ * the animation ends, when the target is committed.
+ * @author Taeho Kim
+ *
+ */
+class MarkerAnimator implements FrameTicker.Callback {
+	static final int DEFAULT_MAX_MARKERS_PER_FRAME = 200;
+
+	private static final int MIN_CAPACITY = 16;
+
+	private MarkerManager mMarkerManager;
+	private FrameTicker mTicker;
+
+	// Slot of each animating marker, by id
+	private LongObjectRegistry<Slot> mSlots;
+
+	private long[] mIds;
+	private Slot[] mSlotRefs;
+	private double[] mFromLat;
+	private double[] mFromLng;
+	private double[] mToLat;
+	private double[] mToLng;
+	private double[] mLat;
+	private double[] mLng;
+	private float[] mFromRotation;
+	private float[] mToRotation;
+	private float[] mRotation;
+	private long[] mStartTime;
+	private long[] mDuration;
+	private boolean[] mIsFinished;
+	private int mSize;
+
+	private int mMaxMarkersPerFrame = DEFAULT_MAX_MARKERS_PER_FRAME;
+	private int mCursor;
+
+	MarkerAnimator(MarkerManager manager){
+		mMarkerManager = manager;
+		mTicker = FrameTicker.create(this);
+		mSlots = new LongObjectRegistry<Slot>();
+		allocate(MIN_CAPACITY);
+	}
+
+	/**
+	 * Starts moving a marker. If the marker is already moving, the new animation starts
+	 * from where the marker currently is.
+	 * @param toRotation Target rotation, or {@link Float#NaN} to keep the current target rotation.
+	 */
+	void animate(long id, LatLng from, float fromRotation, LatLng to, float toRotation, long duration){
+		Slot slot = mSlots.get(id);
+		int i;
+		if(slot!=null){
+			i = slot.index;
+			mFromLat[i] = mLat[i];
+			mFromLng[i] = mLng[i];
+			mFromRotation[i] = mRotation[i];
+		}else{
+			if(mSize==mIds.length){
+				allocate(mIds.length * 2);
+			}
+			i = mSize++;
+			slot = new Slot();
+			slot.index = i;
+			mSlots.put(id, slot);
+			mIds[i] = id;
+			mSlotRefs[i] = slot;
+			mFromLat[i] = mLat[i] = from.latitude;
+			mFromLng[i] = mLng[i] = from.longitude;
+			mFromRotation[i] = mRotation[i] = fromRotation;
+			mToRotation[i] = fromRotation;
+		}
+		mToLat[i] = to.latitude;
+		mToLng[i] = to.longitude;
+		if(!Float.isNaN(toRotation)){
+			mToRotation[i] = toRotation;
+		}
+		mStartTime[i] = SystemClock.uptimeMillis();
+		mDuration[i] = Math.max(1, duration);
+		mIsFinished[i] = false;
+		mTicker.requestFrame();
+	}
+
+	boolean isAnimating(long id){
+		return mSlots.containsKey(id);
+	}
+
+	/**
+	 * Stops moving a marker, leaving it where it currently is on map.
+	 * @return true if the marker was moving.
+	 */
+	boolean cancel(long id){
+		Slot slot = mSlots.get(id);
+		if(slot==null){
+			return false;
+		}
+		removeAt(slot.index);
+		return true;
+	}
+
+	/**
+	 * Stops moving a marker, and commits its current position to the manager.
+	 */
+	void stop(long id){
+		Slot slot = mSlots.get(id);
+		if(slot==null){
+			return;
+		}
+		int i = slot.index;
+		double lat = mLat[i];
+		double lng = mLng[i];
+		float rotation = mRotation[i];
+		removeAt(i);
+		mMarkerManager.onAnimationEnd(id, lat, lng, rotation);
+	}
+
+	void cancelAll(){
+		for(int i=0; i<mSize; i++){
+			mSlotRefs[i] = null;
+		}
+		mSlots.clear();
+		mSize = 0;
+		mCursor = 0;
+		mTicker.cancel();
+	}
+
+	int getCount(){
+		return mSize;
+	}
+
+	void setMaxMarkersPerFrame(int count){
+		if(count<=0){
+			throw new IllegalArgumentException("Count should be greater than 0.");
+		}
+		mMaxMarkersPerFrame = count;
+	}
+
+	@Override
+	public void onFrame(long frameTimeMillis) {
+		int count = Math.min(mSize, mMaxMarkersPerFrame);
+		boolean hasFinished = false;
+		for(int n=0; n<count; n++){
+			int i = (mCursor + n) % mSize;
+			float fraction = (float)(frameTimeMillis - mStartTime[i]) / mDuration[i];
+			if(fraction>=1){
+				mIsFinished[i] = true;
+				hasFinished = true;
+				continue;
+			}
+			if(fraction<0){
+				fraction = 0;
+			}
+			interpolate(i, fraction);
+			Marker marker = mMarkerManager.getLiveMarker(mIds[i]);
+			if(marker!=null){
+				marker.setPosition(new LatLng(mLat[i], mLng[i]));
+				if(mFromRotation[i]!=mToRotation[i]){
+					marker.setRotation(mRotation[i]);
+				}
+			}
+		}
+		mCursor = mSize>0 ? (mCursor + count) % mSize : 0;
+
+		if(hasFinished){
+			// Going backward, as removal moves the last slot into the removed one
+			for(int i=mSize - 1; i>=0; i--){
+				if(mIsFinished[i]){
+					long id = mIds[i];
+					double lat = mToLat[i];
+					double lng = mToLng[i];
+					float rotation = mToRotation[i];
+					removeAt(i);
+					mMarkerManager.onAnimationEnd(id, lat, lng, rotation);
+				}
+			}
+		}
+
+		if(mSize>0){
+			mTicker.requestFrame();
+		}
+	}
+
+	private void interpolate(int i, float fraction){
+		mLat[i] = mFromLat[i] + (mToLat[i] - mFromLat[i]) * fraction;
+
+		// Go the short way around the antimeridian
+		double lngDelta = mToLng[i] - mFromLng[i];
+		if(lngDelta>180){
+			lngDelta -= 360;
+		}else if(lngDelta<-180){
+			lngDelta += 360;
+		}
+		mLng[i] = GeoUtils.wrapLongitude(mFromLng[i] + lngDelta * fraction);
+
+		float rotationDelta = ((mToRotation[i] - mFromRotation[i]) % 360 + 540) % 360 - 180;
+		mRotation[i] = mFromRotation[i] + rotationDelta * fraction;
+	}
+
+	private void removeAt(int i){
+		mSlots.remove(mIds[i]);
+		int last = --mSize;
+		if(i!=last){
+			mIds[i] = mIds[last];
+			mSlotRefs[i] = mSlotRefs[last];
+			mSlotRefs[i].index = i;
+			mFromLat[i] = mFromLat[last];
+			mFromLng[i] = mFromLng[last];
+			mToLat[i] = mToLat[last];
+			mToLng[i] = mToLng[last];
+			mLat[i] = mLat[last];
+			mLng[i] = mLng[last];
+			mFromRotation[i] = mFromRotation[last];
+			mToRotation[i] = mToRotation[last];
+			mRotation[i] = mRotation[last];
+			mStartTime[i] = mStartTime[last];
+			mDuration[i] = mDuration[last];
+			mIsFinished[i] = mIsFinished[last];
+		}
+		mSlotRefs[last] = null;
+		if(mCursor>mSize){
+			mCursor = 0;
+		}
+		if(mSize==0){
+			mTicker.cancel();
+		}
+	}
+
+	private void allocate(int capacity){
+		mIds = copyOf(mIds, capacity);
+		mFromLat = copyOf(mFromLat, capacity);
+		mFromLng = copyOf(mFromLng, capacity);
+		mToLat = copyOf(mToLat, capacity);
+		mToLng = copyOf(mToLng, capacity);
+		mLat = copyOf(mLat, capacity);
+		mLng = copyOf(mLng, capacity);
+		mFromRotation = copyOf(mFromRotation, capacity);
+		mToRotation = copyOf(mToRotation, capacity);
+		mRotation = copyOf(mRotation, capacity);
+		mStartTime = copyOf(mStartTime, capacity);
+		mDuration = copyOf(mDuration, capacity);
+
+		boolean[] isFinished = new boolean[capacity];
+		Slot[] slotRefs = new Slot[capacity];
+		if(mIsFinished!=null){
+			System.arraycopy(mIsFinished, 0, isFinished, 0, mSize);
+			System.arraycopy(mSlotRefs, 0, slotRefs, 0, mSize);
+		}
+		mIsFinished = isFinished;
+		mSlotRefs = slotRefs;
+	}
+
+	private long[] copyOf(long[] array, int capacity){
+		long[] copy = new long[capacity];
+		if(array!=null){
+			System.arraycopy(array, 0, copy, 0, mSize);
+		}
+		return copy;
+	}
+
+	private double[] copyOf(double[] array, int capacity){
+		double[] copy = new double[capacity];
+		if(array!=null){
+			System.arraycopy(array, 0, copy, 0, mSize);
+		}
+		return copy;
+	}
+
+	private float[] copyOf(float[] array, int capacity){
+		float[] copy = new float[capacity];
+		if(array!=null){
+			System.arraycopy(array, 0, copy, 0, mSize);
+		}
+		return copy;
+	}
+
+	/**
+	 * Index of an animation in the arrays, updated when the animation is moved to another slot.
+	 */
+	private static class Slot {
+		int index;
+	}
+}
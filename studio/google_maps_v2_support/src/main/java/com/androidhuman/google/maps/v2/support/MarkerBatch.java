@@ -0,0 +1,163 @@
+/*
+ * Copyright 2013 Taeho Kim (jyte82@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.androidhuman.google.maps.v2.support;
+
+import com.google.android.gms.maps.model.MarkerOptions;
+
+/**
+ * Marker updates and removals recorded during a batch of a {@link MarkerManager}, merged per id.<p>
+ * Each id keeps the options it will end up with, so successive updates of the same marker
+ * change only their own properties and the last write of each property wins.
+ * A removal replaces any pending update.
+ */
+class MarkerBatch implements FrameTicker.Callback {
+	// Pending operation of an id that is to be removed
+	private static final MarkerOptions REMOVED = new MarkerOptions();
+
+	private MarkerManager mMarkerManager;
+	private FrameTicker mTicker;
+	private LongObjectRegistry<MarkerOptions> mPending;
+
+	private int mDepth;
+	private int mOperationCount;
+	private int mCoalescedCount;
+
+	MarkerBatch(MarkerManager manager){
+		mMarkerManager = manager;
+		mTicker = FrameTicker.create(this);
+		mPending = new LongObjectRegistry<MarkerOptions>();
+	}
+
+	void begin(){
+		mDepth++;
+	}
+
+	/**
+	 * Closes a batch, flushing pending operations if it was the outermost one.
+	 */
+	void commit(){
+		end();
+		if(mDepth==0){
+			mTicker.cancel();
+			flush();
+		}
+	}
+
+	/**
+	 * Closes a batch, flushing pending operations on the next frame if it was the outermost one.
+	 */
+	void commitOnNextFrame(){
+		end();
+		if(mDepth==0){
+			mTicker.requestFrame();
+		}
+	}
+
+	private void end(){
+		if(mDepth==0){
+			throw new IllegalStateException("No batch is in progress.");
+		}
+		mDepth--;
+	}
+
+	/**
+	 * Returns whether operations should be recorded instead of applied.
+	 */
+	boolean isRecording(){
+		return mDepth>0 || mTicker.isFrameRequested();
+	}
+
+	/**
+	 * Returns the options a marker will have once pending operations are flushed.
+	 * @return The pending options, or null if there is none.
+	 */
+	MarkerOptions getPendingOptions(long id){
+		MarkerOptions options = mPending.get(id);
+		return options!=REMOVED ? options : null;
+	}
+
+	boolean isRemoved(long id){
+		return mPending.get(id)==REMOVED;
+	}
+
+	void update(long id, MarkerOptions options){
+		record(id, options);
+	}
+
+	void remove(long id){
+		record(id, REMOVED);
+	}
+
+	/**
+	 * Drops pending operations of an id, e.g. when it is added again.
+	 */
+	void discard(long id){
+		mPending.remove(id);
+	}
+
+	void clear(){
+		mPending.clear();
+		mDepth = 0;
+		mTicker.cancel();
+	}
+
+	int getOperationCount(){
+		return mOperationCount;
+	}
+
+	int getCoalescedCount(){
+		return mCoalescedCount;
+	}
+
+	private void record(long id, MarkerOptions options){
+		mOperationCount++;
+		if(mPending.put(id, options)!=null){
+			mCoalescedCount++;
+		}
+	}
+
+	@Override
+	public void onFrame(long frameTimeMillis) {
+		// A batch opened meanwhile flushes when it is committed
+		if(mDepth==0){
+			flush();
+		}
+	}
+
+	private void flush(){
+		if(mPending.isEmpty()){
+			return;
+		}
+		long[] ids = new long[mPending.size()];
+		MarkerOptions[] options = new MarkerOptions[ids.length];
+		int i = 0;
+		for(int slot=mPending.firstSlot(); slot>=0; slot=mPending.nextSlot(slot)){
+			ids[i] = mPending.keyAt(slot);
+			options[i] = mPending.valueAt(slot);
+			i++;
+		}
+		mPending.clear();
+
+		for(i=0; i<ids.length; i++){
+			if(options[i]==REMOVED){
+				mMarkerManager.removeById(ids[i]);
+			}else{
+				mMarkerManager.updateById(ids[i], options[i]);
+			}
+		}
+	}
+}
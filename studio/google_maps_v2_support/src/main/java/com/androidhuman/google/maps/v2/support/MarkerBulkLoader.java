@@ -0,0 +1,153 @@
+/*
+ * Copyright 2013 Taeho Kim (jyte82@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.androidhuman.google.maps.v2.support;
+
+import java.util.LinkedList;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+import com.androidhuman.google.maps.v2.support.SupportGoogleMap.SupportOnMarkersAddListener;
+import com.google.android.gms.maps.model.MarkerOptions;
+
+/**
+ * Applies bulk marker insertions on the main thread in small chunks,
+ * so that a single frame never spends more than the frame budget on adding markers.
+ * @author Taeho Kim
+ *
+ */
+class MarkerBulkLoader implements Runnable {
+
+	static final long DEFAULT_FRAME_BUDGET_MS = 8;
+
+	private MarkerManager mMarkerManager;
+	private Handler mHandler;
+	private LinkedList<Job> mJobs;
+
+	private long mFrameBudget = DEFAULT_FRAME_BUDGET_MS;
+	private int mPendingCount;
+	private boolean mIsScheduled;
+
+	MarkerBulkLoader(MarkerManager manager){
+		mMarkerManager = manager;
+		mHandler = new Handler(Looper.getMainLooper());
+		mJobs = new LinkedList<Job>();
+	}
+
+	/**
+	 * Queues markers to be added. Markers will be added on the following frames.
+	 * @param ids Ids assigned to each marker
+	 * @param options Options of each marker, in the same order with ids
+	 * @param listener Callback to report progress, or null
+	 */
+	void enqueue(long[] ids, MarkerOptions[] options, SupportOnMarkersAddListener listener){
+		if(ids.length==0){
+			if(listener!=null){
+				listener.onMarkersAdded(ids);
+			}
+			return;
+		}
+		mJobs.add(new Job(ids, options, listener));
+		mPendingCount += ids.length;
+		schedule();
+	}
+
+	/**
+	 * Drops all markers which were not added yet.
+	 */
+	void cancel(){
+		mJobs.clear();
+		mPendingCount = 0;
+		mHandler.removeCallbacks(this);
+		mIsScheduled = false;
+	}
+
+	int getPendingCount(){
+		return mPendingCount;
+	}
+
+	long getFrameBudget(){
+		return mFrameBudget;
+	}
+
+	void setFrameBudget(long millis){
+		if(millis<=0){
+			throw new IllegalArgumentException("Frame budget should be greater than 0.");
+		}
+		mFrameBudget = millis;
+	}
+
+	private void schedule(){
+		if(!mIsScheduled){
+			mIsScheduled = true;
+			mHandler.post(this);
+		}
+	}
+
+	@Override
+	public void run() {
+		mIsScheduled = false;
+		long deadline = SystemClock.uptimeMillis() + mFrameBudget;
+
+		while(!mJobs.isEmpty()){
+			Job job = mJobs.getFirst();
+			// Always add at least one marker per frame to make progress
+			do{
+				mMarkerManager.addMarkerWithRef(job.ids[job.next], job.options[job.next]);
+				job.options[job.next] = null;
+				job.next++;
+				mPendingCount--;
+			}while(job.next<job.ids.length && SystemClock.uptimeMillis()<deadline);
+
+			if(job.next==job.ids.length){
+				mJobs.removeFirst();
+				if(job.listener!=null){
+					job.listener.onProgress(job.next, job.ids.length);
+					job.listener.onMarkersAdded(job.ids);
+				}
+			}else{
+				if(job.listener!=null){
+					job.listener.onProgress(job.next, job.ids.length);
+				}
+				break;
+			}
+
+			if(SystemClock.uptimeMillis()>=deadline){
+				break;
+			}
+		}
+
+		if(!mJobs.isEmpty()){
+			schedule();
+		}
+	}
+
+	private static class Job {
+		final long[] ids;
+		final MarkerOptions[] options;
+		final SupportOnMarkersAddListener listener;
+		int next;
+
+		Job(long[] ids, MarkerOptions[] options, SupportOnMarkersAddListener listener){
+			this.ids = ids;
+			this.options = options;
+			this.listener = listener;
+		}
+	}
+
+}
@@ -0,0 +1,563 @@
+/*
+ * Copyright 2013 Taeho Kim (jyte82@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.androidhuman.google.maps.v2.support;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import com.androidhuman.google.maps.v2.support.SupportGoogleMap.SupportOnClusterClickListener;
+import com.androidhuman.google.maps.v2.support.SupportGoogleMap.SupportOnMarkerClickListener;
+import com.google.android.gms.maps.CameraUpdateFactory;
+import com.google.android.gms.maps.GoogleMap;
+import com.google.android.gms.maps.model.CameraPosition;
+import com.google.android.gms.maps.model.LatLng;
+import com.google.android.gms.maps.model.LatLngBounds;
+import com.google.android.gms.maps.model.Marker;
+import com.google.android.gms.maps.model.MarkerOptions;
+
+/**
+ * Groups markers of a {@link MarkerManager} that are close to each other on screen,
+ * and shows a single cluster marker for each group.<p>
+ * Markers are grouped by a grid laid over the map in screen space at the current zoom level,
+ * so clusters are only recomputed when the zoom level changes. Adding, moving and removing
+ * markers updates the affected clusters only.<p>
+ * Recomputation runs on a background thread over a snapshot of marker positions.
+ * The result is applied to the map on the main thread as a diff against the clusters
+ * currently shown, and results made stale by a newer zoom level are dropped.
+ * @author Taeho Kim
+ *
+ */
+public class MarkerClusterer {
+	public static final int DEFAULT_MIN_CLUSTER_SIZE = 4;
+	public static final int DEFAULT_GRID_SIZE = 100;
+
+	private static final int TILE_SIZE = 256;
+	private static final int CLUSTER_PADDING = 100;
+	private static final int NO_ZOOM = -1;
+	private static final int CANCELLATION_CHECK_INTERVAL = 1024;
+
+	private MarkerManager mMarkerManager;
+	private GoogleMap mGoogleMap;
+	private Handler mHandler;
+	private ExecutorService mExecutor;
+
+	private LongObjectRegistry<Cluster> mClusters;
+	private LongObjectRegistry<Cluster> mClusterOfMarker;
+	private HashMap<Marker, Cluster> mClusterByMarker;
+
+	private int mZoom = NO_ZOOM;
+	private int mMinClusterSize = DEFAULT_MIN_CLUSTER_SIZE;
+	private int mGridSize = DEFAULT_GRID_SIZE;
+	private ClusterMarkerFactory mClusterMarkerFactory;
+
+	private int mGeneration;
+	private int mRequestedZoom = NO_ZOOM;
+	private Future<?> mPendingTask;
+	private LongList mChangedIds;
+
+	MarkerClusterer(MarkerManager manager, GoogleMap map){
+		mMarkerManager = manager;
+		mGoogleMap = map;
+		mHandler = new Handler(Looper.getMainLooper());
+		mExecutor = BackgroundExecutors.newSingleThreadExecutor("MarkerClusterer");
+		mClusters = new LongObjectRegistry<Cluster>();
+		mClusterOfMarker = new LongObjectRegistry<Cluster>();
+		mClusterByMarker = new HashMap<Marker, Cluster>();
+	}
+
+	void setGoogleMap(GoogleMap map){
+		mGoogleMap = map;
+	}
+
+	boolean hasGoogleMap(){
+		return mGoogleMap!=null;
+	}
+
+	/**
+	 * Sets the minimum number of markers that are shown as a cluster.
+	 * Default value is {@value #DEFAULT_MIN_CLUSTER_SIZE}.
+	 * @param size Minimum size of a cluster, at least 2.
+	 */
+	public void setMinClusterSize(int size){
+		if(size<2){
+			throw new IllegalArgumentException("Cluster size should be at least 2.");
+		}
+		mMinClusterSize = size;
+		recluster(currentZoom());
+	}
+
+	/**
+	 * Sets the size of the grid cells, in screen pixels at the current zoom level.
+	 * Default value is {@value #DEFAULT_GRID_SIZE}.
+	 * @param size Grid size in pixels
+	 */
+	public void setGridSize(int size){
+		if(size<=0){
+			throw new IllegalArgumentException("Grid size should be greater than 0.");
+		}
+		mGridSize = size;
+		recluster(currentZoom());
+	}
+
+	/**
+	 * Sets the factory that defines how cluster markers look.
+	 * @param factory Factory of cluster markers, or null to use default markers.
+	 */
+	public void setClusterMarkerFactory(ClusterMarkerFactory factory){
+		mClusterMarkerFactory = factory;
+		recluster(currentZoom());
+	}
+
+	/**
+	 * Returns the number of clusters currently shown on map.
+	 * @return The number of clusters
+	 */
+	public int getClusterCount(){
+		return mClusterByMarker.size();
+	}
+
+	/**
+	 * Returns whether a recomputation is running in background.
+	 * @return true if clusters are being recomputed.
+	 */
+	public boolean isComputing(){
+		return mPendingTask!=null;
+	}
+
+	boolean isClustered(long id){
+		Cluster cluster = mClusterOfMarker.get(id);
+		return cluster!=null && isActive(cluster);
+	}
+
+	boolean isClusterMarker(Marker marker){
+		return mClusterByMarker.containsKey(marker);
+	}
+
+	void onCameraChange(CameraPosition position){
+		int zoom = (int)position.zoom;
+		if(zoom!=currentZoom()){
+			recluster(zoom);
+		}
+	}
+
+	void onMarkerAdded(long id, LatLng position){
+		markChanged(id);
+		if(mZoom==NO_ZOOM){
+			return;
+		}
+		addToCell(mClusters, mClusterOfMarker, id, position, mZoom, mGridSize);
+		updateCluster(mClusterOfMarker.get(id), isActiveWithout(mClusterOfMarker.get(id)));
+	}
+
+	void onMarkerMoved(long id, LatLng position){
+		markChanged(id);
+		if(mZoom==NO_ZOOM){
+			return;
+		}
+		Cluster old = mClusterOfMarker.get(id);
+		if(old!=null && old.key==cellKey(position, mZoom, mGridSize)){
+			old.move(id, position);
+			if(old.marker!=null){
+				showClusterMarker(old);
+			}
+			return;
+		}
+		onMarkerRemoved(id);
+		onMarkerAdded(id, position);
+	}
+
+	void onMarkerRemoved(long id){
+		markChanged(id);
+		Cluster cluster = mClusterOfMarker.get(id);
+		if(cluster==null){
+			return;
+		}
+		boolean wasActive = isActive(cluster);
+		removeFromCell(mClusters, mClusterOfMarker, id);
+		updateCluster(cluster, wasActive);
+	}
+
+	/**
+	 * Removes every cluster marker, leaving the markers of the manager on their own.
+	 */
+	void clear(){
+		if(mPendingTask!=null){
+			// Nothing is left to compute
+			mZoom = mRequestedZoom;
+			cancelPendingTask();
+		}
+		for(Marker marker : mClusterByMarker.keySet()){
+			marker.remove();
+		}
+		mClusters.clear();
+		mClusterOfMarker.clear();
+		mClusterByMarker.clear();
+	}
+
+	/**
+	 * Cancels pending work and removes every cluster marker.
+	 */
+	void destroy(){
+		cancelPendingTask();
+		mExecutor.shutdownNow();
+		clear();
+	}
+
+	boolean onClusterMarkerClick(Marker marker, SupportOnMarkerClickListener listener){
+		Cluster cluster = mClusterByMarker.get(marker);
+		if(listener instanceof SupportOnClusterClickListener){
+			if(((SupportOnClusterClickListener)listener).onClusterClick(cluster.ids.toArray(), marker)){
+				return true;
+			}
+		}
+
+		LatLngBounds bounds = cluster.getBounds();
+		boolean isSinglePoint = bounds.southwest.latitude==bounds.northeast.latitude
+				&& bounds.southwest.longitude==bounds.northeast.longitude;
+		if(!isSinglePoint && mGoogleMap.getCameraPosition().zoom<mGoogleMap.getMaxZoomLevel()){
+			mGoogleMap.animateCamera(CameraUpdateFactory.newLatLngBounds(bounds, CLUSTER_PADDING));
+		}else{
+			// Can't zoom any further, show each marker instead
+			cluster.expanded = true;
+			updateCluster(cluster, true);
+		}
+		return true;
+	}
+
+	private int currentZoom(){
+		return mPendingTask!=null ? mRequestedZoom : mZoom;
+	}
+
+	private void markChanged(long id){
+		if(mChangedIds!=null){
+			mChangedIds.add(id);
+		}
+	}
+
+	private void cancelPendingTask(){
+		if(mPendingTask!=null){
+			mPendingTask.cancel(true);
+			mPendingTask = null;
+		}
+		mChangedIds = null;
+	}
+
+	/**
+	 * Starts recomputing clusters at given zoom level in background,
+	 * replacing any recomputation in progress.
+	 */
+	private void recluster(final int zoom){
+		cancelPendingTask();
+		if(zoom==NO_ZOOM){
+			return;
+		}
+		final int generation = ++mGeneration;
+		final int gridSize = mGridSize;
+		final MarkerQuadTree.Snapshot snapshot = mMarkerManager.getIndex().snapshot();
+		mRequestedZoom = zoom;
+		mChangedIds = new LongList();
+		mPendingTask = mExecutor.submit(new Runnable() {
+			@Override
+			public void run() {
+				final LongObjectRegistry<Cluster> clusters = new LongObjectRegistry<Cluster>();
+				final LongObjectRegistry<Cluster> clusterOfMarker = new LongObjectRegistry<Cluster>(snapshot.ids.length);
+				for(int i=0; i<snapshot.ids.length; i++){
+					if(i % CANCELLATION_CHECK_INTERVAL==0 && Thread.currentThread().isInterrupted()){
+						return;
+					}
+					addToCell(clusters, clusterOfMarker, snapshot.ids[i], snapshot.positions[i], zoom, gridSize);
+				}
+				mHandler.post(new Runnable() {
+					@Override
+					public void run() {
+						if(generation==mGeneration && mPendingTask!=null){
+							applyClusters(zoom, clusters, clusterOfMarker);
+						}
+					}
+				});
+			}
+		});
+	}
+
+	/**
+	 * Replaces the current clusters with recomputed ones, touching only
+	 * the markers and cluster markers that differ between the two.
+	 */
+	private void applyClusters(int zoom, LongObjectRegistry<Cluster> clusters, LongObjectRegistry<Cluster> clusterOfMarker){
+		LongList changedIds = mChangedIds;
+		mPendingTask = null;
+		mChangedIds = null;
+
+		// Catch up with markers changed while computing
+		MarkerQuadTree index = mMarkerManager.getIndex();
+		for(int i=0; i<changedIds.size(); i++){
+			long id = changedIds.get(i);
+			removeFromCell(clusters, clusterOfMarker, id);
+			LatLng position = index.getPosition(id);
+			if(position!=null){
+				addToCell(clusters, clusterOfMarker, id, position, zoom, mGridSize);
+			}
+		}
+
+		LongObjectRegistry<Cluster> oldClusterOfMarker = mClusterOfMarker;
+		HashMap<Marker, Cluster> oldClusterByMarker = mClusterByMarker;
+		mClusters = clusters;
+		mClusterOfMarker = clusterOfMarker;
+		mClusterByMarker = new HashMap<Marker, Cluster>();
+		mZoom = zoom;
+
+		// Show or hide the markers whose clustered state has changed
+		LongObjectRegistry<LatLng> positions = index.positions();
+		for(int slot=positions.firstSlot(); slot>=0; slot=positions.nextSlot(slot)){
+			long id = positions.keyAt(slot);
+			Cluster oldCluster = oldClusterOfMarker.get(id);
+			boolean wasClustered = oldCluster!=null && oldCluster.marker!=null;
+			if(wasClustered!=isClustered(id)){
+				mMarkerManager.syncOnMap(id);
+			}
+		}
+
+		// Move cluster markers of clusters sharing a member, add the rest
+		for(int slot=clusters.firstSlot(); slot>=0; slot=clusters.nextSlot(slot)){
+			Cluster cluster = clusters.valueAt(slot);
+			if(!isActive(cluster)){
+				continue;
+			}
+			for(int i=0; i<cluster.ids.size() && cluster.marker==null; i++){
+				Cluster oldCluster = oldClusterOfMarker.get(cluster.ids.get(i));
+				if(oldCluster!=null && oldCluster.marker!=null
+						&& oldClusterByMarker.remove(oldCluster.marker)!=null){
+					cluster.marker = oldCluster.marker;
+					cluster.shownPosition = oldCluster.shownPosition;
+					cluster.shownSize = oldCluster.shownSize;
+					mClusterByMarker.put(cluster.marker, cluster);
+				}
+			}
+			showClusterMarker(cluster);
+		}
+
+		// Remove the cluster markers left unused
+		for(Marker marker : oldClusterByMarker.keySet()){
+			marker.remove();
+		}
+	}
+
+	/**
+	 * Applies a membership change of given cluster to the map.
+	 */
+	private void updateCluster(Cluster cluster, boolean wasActive){
+		boolean isActive = isActive(cluster);
+		if(wasActive!=isActive){
+			for(int i=0; i<cluster.ids.size(); i++){
+				mMarkerManager.syncOnMap(cluster.ids.get(i));
+			}
+		}
+		if(isActive){
+			showClusterMarker(cluster);
+		}else if(cluster.marker!=null){
+			mClusterByMarker.remove(cluster.marker);
+			cluster.marker.remove();
+			cluster.marker = null;
+			cluster.shownPosition = null;
+		}
+	}
+
+	private void showClusterMarker(Cluster cluster){
+		LatLng center = cluster.getCenter();
+		if(cluster.marker!=null && cluster.shownSize==cluster.ids.size() && center.equals(cluster.shownPosition)){
+			return;
+		}
+		cluster.shownPosition = center;
+		cluster.shownSize = cluster.ids.size();
+		
+		MarkerOptions options = createClusterMarkerOptions(cluster, center);
+		if(cluster.marker==null){
+			cluster.marker = mGoogleMap.addMarker(options);
+			mClusterByMarker.put(cluster.marker, cluster);
+		}else{
+			cluster.marker.setPosition(options.getPosition());
+			cluster.marker.setTitle(options.getTitle());
+			if(options.getIcon()!=null){
+				cluster.marker.setIcon(options.getIcon());
+			}
+		}
+	}
+
+	private MarkerOptions createClusterMarkerOptions(Cluster cluster, LatLng center){
+		if(mClusterMarkerFactory!=null){
+			return mClusterMarkerFactory.createClusterMarker(cluster.ids.toArray(), center)
+					.position(center);
+		}
+		return new MarkerOptions()
+			.position(center)
+			.title(String.valueOf(cluster.ids.size()));
+	}
+
+	private boolean isActive(Cluster cluster){
+		return !cluster.expanded && cluster.ids.size()>=mMinClusterSize;
+	}
+
+	/**
+	 * Returns whether given cluster was active before its last member was added.
+	 */
+	private boolean isActiveWithout(Cluster cluster){
+		return !cluster.expanded && cluster.ids.size() - 1>=mMinClusterSize;
+	}
+
+	private static void addToCell(LongObjectRegistry<Cluster> clusters, LongObjectRegistry<Cluster> clusterOfMarker,
+			long id, LatLng position, int zoom, int gridSize){
+		long key = cellKey(position, zoom, gridSize);
+		Cluster cluster = clusters.get(key);
+		if(cluster==null){
+			cluster = new Cluster(key);
+			clusters.put(key, cluster);
+		}
+		cluster.add(id, position);
+		clusterOfMarker.put(id, cluster);
+	}
+
+	private static void removeFromCell(LongObjectRegistry<Cluster> clusters, LongObjectRegistry<Cluster> clusterOfMarker, long id){
+		Cluster cluster = clusterOfMarker.remove(id);
+		if(cluster==null){
+			return;
+		}
+		cluster.remove(id);
+		if(cluster.ids.size()==0){
+			clusters.remove(cluster.key);
+		}
+	}
+
+	private static long cellKey(LatLng position, int zoom, int gridSize){
+		double worldSize = TILE_SIZE * Math.pow(2, zoom);
+		double x = (position.longitude + 180) / 360 * worldSize;
+		double sin = Math.sin(Math.toRadians(position.latitude));
+		sin = Math.min(Math.max(sin, -0.9999), 0.9999);
+		double y = (0.5 - Math.log((1 + sin) / (1 - sin)) / (4 * Math.PI)) * worldSize;
+		long cellX = (long)(x / gridSize);
+		long cellY = (long)(y / gridSize);
+		return (cellX << 32) | (cellY & 0xffffffffL);
+	}
+
+	private static class Cluster {
+		final long key;
+		final LongList ids;
+		final ArrayList<LatLng> positions;
+		// Index of each member in ids and positions, or null until a member is moved or removed
+		LongObjectRegistry<Integer> indexOfId;
+		double sumLatitude;
+		double sumLongitude;
+		Marker marker;
+		LatLng shownPosition;
+		int shownSize;
+		boolean expanded;
+
+		Cluster(long key){
+			this.key = key;
+			ids = new LongList(4);
+			positions = new ArrayList<LatLng>(4);
+		}
+
+		void add(long id, LatLng position){
+			if(indexOfId!=null){
+				indexOfId.put(id, ids.size());
+			}
+			ids.add(id);
+			positions.add(position);
+			sumLatitude += position.latitude;
+			sumLongitude += position.longitude;
+		}
+
+		void move(long id, LatLng position){
+			int i = indexOf(id);
+			if(i<0){
+				return;
+			}
+			LatLng old = positions.set(i, position);
+			sumLatitude += position.latitude - old.latitude;
+			sumLongitude += position.longitude - old.longitude;
+		}
+
+		/**
+		 * Removes a member by moving the last member in its place, so members are not kept in order.
+		 */
+		void remove(long id){
+			int i = indexOf(id);
+			if(i<0){
+				return;
+			}
+			LatLng position = positions.get(i);
+			sumLatitude -= position.latitude;
+			sumLongitude -= position.longitude;
+			int last = ids.size() - 1;
+			if(i<last){
+				long lastId = ids.get(last);
+				ids.set(i, lastId);
+				positions.set(i, positions.get(last));
+				indexOfId.put(lastId, i);
+			}
+			ids.removeAt(last);
+			positions.remove(last);
+			indexOfId.remove(id);
+		}
+
+		private int indexOf(long id){
+			if(indexOfId==null){
+				// Built on the first change, so that computing clusters in background doesn't pay for it
+				indexOfId = new LongObjectRegistry<Integer>(ids.size());
+				for(int i=0; i<ids.size(); i++){
+					indexOfId.put(ids.get(i), i);
+				}
+			}
+			Integer i = indexOfId.get(id);
+			return i!=null ? i : -1;
+		}
+
+		LatLng getCenter(){
+			return new LatLng(sumLatitude / ids.size(), sumLongitude / ids.size());
+		}
+
+		LatLngBounds getBounds(){
+			LatLngBounds.Builder builder = LatLngBounds.builder();
+			for(LatLng position : positions){
+				builder.include(position);
+			}
+			return builder.build();
+		}
+	}
+
+	/**
+	 * Defines how cluster markers look.
+	 * @author Taeho Kim
+	 */
+	public interface ClusterMarkerFactory {
+
+		/**
+		 * Called when a cluster marker is created or its members have changed.
+		 * The position of the returned options is overridden with the center of the cluster.
+		 * @param ids Ids of the markers in the cluster
+		 * @param position Center of the cluster
+		 * @return Options of the cluster marker
+		 */
+		public MarkerOptions createClusterMarker(long[] ids, LatLng position);
+	}
+
+}
@@ -0,0 +1,252 @@
+/*
+ * Copyright 2013 Taeho Kim (jyte82@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.androidhuman.google.maps.v2.support;
+
+import java.util.concurrent.ExecutorService;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+import com.androidhuman.google.maps.v2.support.SupportGoogleMap.SupportOnMarkerDragListener;
+import com.androidhuman.google.maps.v2.support.SupportGoogleMap.SupportOnMarkerDragPositionListener;
+import com.google.android.gms.maps.model.LatLng;
+import com.google.android.gms.maps.model.Marker;
+
+/**
+ * Dispatches drag events of a {@link MarkerManager} to its drag listeners.<p>
+ * Drag events are delivered at most once per minimum interval. A drag event arriving too early
+ * is held back and delivered when the interval has elapsed, with the latest position of the marker,
+ * so the latest position is always delivered. Start and end of a drag are delivered
+ * exactly once, even when the dragged marker is removed or the drag began before the listener was set.
+ * A drag ended by removing the marker or clearing the map reports the last position seen from a drag event,
+ * as the marker can't be read anymore.<p>
+ * The position listener can be called on a background thread, with positions copied on the main thread.
+ * Events are then delivered in order, and drag events superseded by a newer one are skipped.
+ */
+class MarkerDragDispatcher {
+	private static final int EVENT_START = 0;
+	private static final int EVENT_DRAG = 1;
+	private static final int EVENT_END = 2;
+
+	private Handler mHandler;
+	private SupportOnMarkerDragListener mListener;
+	private SupportOnMarkerDragPositionListener mPositionListener;
+	private ExecutorService mExecutor;
+	private long mMinInterval;
+
+	private boolean mIsDragging;
+	private long mDraggingId;
+	private Marker mDraggingMarker;
+	private LatLng mLastPosition;
+	private long mLastDragTime;
+	private boolean mIsDragPending;
+	private volatile int mDragSequence;
+
+	private int mRawDragCount;
+	private int mDeliveredDragCount;
+
+	private Runnable mPendingDrag = new Runnable() {
+		@Override
+		public void run() {
+			mIsDragPending = false;
+			deliverDrag();
+		}
+	};
+
+	MarkerDragDispatcher(){
+		mHandler = new Handler(Looper.getMainLooper());
+	}
+
+	void setListener(SupportOnMarkerDragListener listener){
+		mListener = listener;
+	}
+
+	/**
+	 * Sets the listener receiving copied positions.
+	 * @param inBackground true to call the listener on a background thread.
+	 */
+	void setPositionListener(SupportOnMarkerDragPositionListener listener, boolean inBackground){
+		mPositionListener = listener;
+		if(listener!=null && inBackground){
+			if(mExecutor==null){
+				mExecutor = BackgroundExecutors.newSingleThreadExecutor("gmap_v2_support_marker_drag");
+			}
+		}else if(mExecutor!=null){
+			// Events already submitted are still delivered
+			mExecutor.shutdown();
+			mExecutor = null;
+		}
+	}
+
+	boolean hasListener(){
+		return mListener!=null || mPositionListener!=null;
+	}
+
+	void setMinInterval(long millis){
+		if(millis<0){
+			throw new IllegalArgumentException("Interval should not be negative.");
+		}
+		mMinInterval = millis;
+	}
+
+	long getMinInterval(){
+		return mMinInterval;
+	}
+
+	int getRawDragCount(){
+		return mRawDragCount;
+	}
+
+	int getDeliveredDragCount(){
+		return mDeliveredDragCount;
+	}
+
+	void onDragStart(long id, Marker marker){
+		if(mIsDragging){
+			if(mDraggingId==id){
+				return;
+			}
+			finishDrag();
+		}
+		mIsDragging = true;
+		mDraggingId = id;
+		mDraggingMarker = marker;
+		mLastPosition = marker.getPosition();
+		mLastDragTime = SystemClock.uptimeMillis();
+		dispatch(EVENT_START, id, marker, mLastPosition);
+	}
+
+	void onDrag(long id, Marker marker){
+		mRawDragCount++;
+		if(!mIsDragging || mDraggingId!=id){
+			onDragStart(id, marker);
+		}
+		mLastPosition = marker.getPosition();
+		long dueTime = mLastDragTime + mMinInterval;
+		if(SystemClock.uptimeMillis()>=dueTime){
+			cancelPendingDrag();
+			deliverDrag();
+		}else if(!mIsDragPending){
+			mIsDragPending = true;
+			mHandler.postAtTime(mPendingDrag, dueTime);
+		}
+	}
+
+	void onDragEnd(long id, Marker marker){
+		if(!mIsDragging || mDraggingId!=id){
+			onDragStart(id, marker);
+		}
+		mLastPosition = marker.getPosition();
+		finishDrag();
+	}
+
+	/**
+	 * Ends the drag of a marker about to be removed from map.
+	 */
+	void onMarkerRemoved(long id){
+		if(mIsDragging && mDraggingId==id){
+			finishDrag();
+		}
+	}
+
+	/**
+	 * Ends the current drag, if any.
+	 */
+	void endDrag(){
+		if(mIsDragging){
+			finishDrag();
+		}
+	}
+
+	/**
+	 * Delivers the end of the current drag with the last recorded position,
+	 * without reading the marker which may be gone from map already.
+	 */
+	private void finishDrag(){
+		// The end event carries the final position, so a held back drag event is not needed anymore
+		cancelPendingDrag();
+		Marker marker = mDraggingMarker;
+		LatLng position = mLastPosition;
+		mIsDragging = false;
+		mDraggingMarker = null;
+		mLastPosition = null;
+		dispatch(EVENT_END, mDraggingId, marker, position);
+	}
+
+	private void cancelPendingDrag(){
+		if(mIsDragPending){
+			mIsDragPending = false;
+			mHandler.removeCallbacks(mPendingDrag);
+		}
+	}
+
+	private void deliverDrag(){
+		mLastDragTime = SystemClock.uptimeMillis();
+		mDeliveredDragCount++;
+		dispatch(EVENT_DRAG, mDraggingId, mDraggingMarker, mLastPosition);
+	}
+
+	private void dispatch(final int event, final long id, Marker marker, final LatLng position){
+		if(mListener!=null){
+			switch(event){
+			case EVENT_START:
+				mListener.onMarkerDragStart(id, marker);
+				break;
+			case EVENT_DRAG:
+				mListener.onMarkerDrag(id, marker);
+				break;
+			default:
+				mListener.onMarkerDragEnd(id, marker);
+				break;
+			}
+		}
+		final SupportOnMarkerDragPositionListener listener = mPositionListener;
+		if(listener==null){
+			return;
+		}
+		if(mExecutor==null){
+			dispatch(listener, event, id, position);
+			return;
+		}
+		final int sequence = event==EVENT_DRAG ? ++mDragSequence : mDragSequence;
+		mExecutor.execute(new Runnable() {
+			@Override
+			public void run() {
+				if(event==EVENT_DRAG && sequence!=mDragSequence){
+					// A newer position is on its way
+					return;
+				}
+				dispatch(listener, event, id, position);
+			}
+		});
+	}
+
+	private static void dispatch(SupportOnMarkerDragPositionListener listener, int event, long id, LatLng position){
+		switch(event){
+		case EVENT_START:
+			listener.onMarkerDragStart(id, position);
+			break;
+		case EVENT_DRAG:
+			listener.onMarkerDrag(id, position);
+			break;
+		default:
+			listener.onMarkerDragEnd(id, position);
+			break;
+		}
+	}
+}
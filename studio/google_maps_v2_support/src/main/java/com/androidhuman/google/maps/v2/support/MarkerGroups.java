@@ -0,0 +1,236 @@
+/*
+ * Copyright 2013 Taeho Kim (jyte82@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.androidhuman.google.maps.v2.support;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Set;
+
+import android.os.SystemClock;
+
+import com.androidhuman.google.maps.v2.support.model.SupportMarker;
+import com.google.android.gms.maps.model.Marker;
+import com.google.android.gms.maps.model.MarkerOptions;
+
+/**
+ * Named groups of markers in a {@link MarkerManager}, which can be shown and hidden as a whole.<p>
+ * Hiding a group keeps its markers on map and only calls {@link Marker#setVisible(boolean)} on them,
+ * spread over the following frames within the frame budget of the manager, so that toggling
+ * a large group neither recreates markers nor stalls a frame. Markers put on map while their group
+ * is hidden are created hidden.
+ */
+class MarkerGroups implements FrameTicker.Callback {
+	// Rough heap usage of a marker record: SupportMarker, MarkerOptions, LatLng and table entries
+	private static final int RECORD_SIZE_ESTIMATE = 200;
+
+	private MarkerManager mMarkerManager;
+	private FrameTicker mTicker;
+	private HashMap<String, Group> mGroups;
+	private LongObjectRegistry<Group> mGroupOfMarker;
+	private ArrayList<Group> mTogglingGroups;
+
+	MarkerGroups(MarkerManager manager){
+		mMarkerManager = manager;
+		mTicker = FrameTicker.create(this);
+		mGroups = new HashMap<String, Group>();
+		mGroupOfMarker = new LongObjectRegistry<Group>();
+		mTogglingGroups = new ArrayList<Group>();
+	}
+
+	/**
+	 * Puts a marker in a group, taking it out of its previous group.
+	 * @return true if the visibility of the marker may have changed.
+	 */
+	boolean put(long id, String name){
+		Group old = mGroupOfMarker.get(id);
+		if(old!=null && old.name.equals(name)){
+			return false;
+		}
+		boolean wasHidden = remove(id);
+		Group group = mGroups.get(name);
+		if(group==null){
+			group = new Group(name);
+			mGroups.put(name, group);
+		}
+		group.ids.put(id, Boolean.TRUE);
+		mGroupOfMarker.put(id, group);
+		return wasHidden==group.isVisible;
+	}
+
+	/**
+	 * Takes a marker out of its group. Empty groups are kept, along with their visibility.
+	 * @return true if the marker was hidden by its group.
+	 */
+	boolean remove(long id){
+		Group group = mGroupOfMarker.remove(id);
+		if(group==null){
+			return false;
+		}
+		group.ids.remove(id);
+		return !group.isVisible;
+	}
+
+	String getGroupName(long id){
+		Group group = mGroupOfMarker.get(id);
+		return group!=null ? group.name : null;
+	}
+
+	/**
+	 * Returns whether a marker is hidden by its group.
+	 */
+	boolean isHidden(long id){
+		Group group = mGroupOfMarker.get(id);
+		return group!=null && !group.isVisible;
+	}
+
+	void setVisible(String name, boolean visible){
+		Group group = mGroups.get(name);
+		if(group==null){
+			group = new Group(name);
+			mGroups.put(name, group);
+		}
+		if(group.isVisible==visible){
+			return;
+		}
+		group.isVisible = visible;
+
+		// Restart from the beginning, as the markers may have been changed by a previous toggle
+		group.pendingIds = group.ids.keys();
+		group.cursor = 0;
+		if(!mTogglingGroups.contains(group)){
+			mTogglingGroups.add(group);
+		}
+		mTicker.requestFrame();
+	}
+
+	boolean isVisible(String name){
+		Group group = mGroups.get(name);
+		return group==null || group.isVisible;
+	}
+
+	Set<String> getNames(){
+		return mGroups.keySet();
+	}
+
+	int getSize(String name){
+		Group group = mGroups.get(name);
+		return group!=null ? group.ids.size() : 0;
+	}
+
+	/**
+	 * Returns the number of markers of a group that currently have a {@link Marker} on map.
+	 */
+	int getOnMapCount(String name){
+		Group group = mGroups.get(name);
+		if(group==null){
+			return 0;
+		}
+		int count = 0;
+		for(int slot=group.ids.firstSlot(); slot>=0; slot=group.ids.nextSlot(slot)){
+			if(mMarkerManager.getLiveMarker(group.ids.keyAt(slot))!=null){
+				count++;
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * Returns an estimate of the heap used by the marker records of a group, in bytes.
+	 * Icons are not counted, as they are shared between markers.
+	 */
+	long getMemoryEstimate(String name){
+		Group group = mGroups.get(name);
+		if(group==null){
+			return 0;
+		}
+		long bytes = 0;
+		LongObjectRegistry<SupportMarker> records = mMarkerManager.getRecords();
+		for(int slot=group.ids.firstSlot(); slot>=0; slot=group.ids.nextSlot(slot)){
+			bytes += RECORD_SIZE_ESTIMATE;
+			SupportMarker record = records.get(group.ids.keyAt(slot));
+			if(record!=null){
+				MarkerOptions options = record.getOptions();
+				bytes += stringSize(options.getTitle()) + stringSize(options.getSnippet());
+			}
+		}
+		return bytes;
+	}
+
+	/**
+	 * Returns whether a group is still changing the visibility of its markers.
+	 */
+	boolean isToggling(String name){
+		Group group = mGroups.get(name);
+		return group!=null && group.pendingIds!=null;
+	}
+
+	void clear(){
+		mGroups.clear();
+		mGroupOfMarker.clear();
+		mTogglingGroups.clear();
+		mTicker.cancel();
+	}
+
+	@Override
+	public void onFrame(long frameTimeMillis) {
+		long deadline = SystemClock.uptimeMillis() + mMarkerManager.getFrameBudget();
+		LongObjectRegistry<SupportMarker> records = mMarkerManager.getRecords();
+		while(!mTogglingGroups.isEmpty()){
+			Group group = mTogglingGroups.get(0);
+			while(group.cursor<group.pendingIds.length){
+				long id = group.pendingIds[group.cursor++];
+				Marker marker = mMarkerManager.getLiveMarker(id);
+				// Markers that moved to another group, or that are invisible anyway, are left alone
+				if(marker!=null && mGroupOfMarker.get(id)==group && records.get(id).getOptions().isVisible()){
+					marker.setVisible(group.isVisible);
+				}
+				if(SystemClock.uptimeMillis()>=deadline){
+					break;
+				}
+			}
+			if(group.cursor<group.pendingIds.length){
+				break;
+			}
+			group.pendingIds = null;
+			mTogglingGroups.remove(0);
+			if(SystemClock.uptimeMillis()>=deadline){
+				break;
+			}
+		}
+		if(!mTogglingGroups.isEmpty()){
+			mTicker.requestFrame();
+		}
+	}
+
+	private static int stringSize(String s){
+		// String object plus its UTF-16 characters
+		return s!=null ? 40 + s.length() * 2 : 0;
+	}
+
+	private static class Group {
+		final String name;
+		final LongObjectRegistry<Boolean> ids;
+		boolean isVisible = true;
+		long[] pendingIds;
+		int cursor;
+
+		Group(String name){
+			this.name = name;
+			this.ids = new LongObjectRegistry<Boolean>();
+		}
+	}
+}
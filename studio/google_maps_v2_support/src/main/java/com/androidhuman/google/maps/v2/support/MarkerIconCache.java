@@ -0,0 +1,201 @@
+/*
+ * Copyright 2013 Taeho Kim (jyte82@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.androidhuman.google.maps.v2.support;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map.Entry;
+
+import android.graphics.Bitmap;
+
+import com.google.android.gms.maps.model.BitmapDescriptor;
+import com.google.android.gms.maps.model.BitmapDescriptorFactory;
+
+/**
+ * Cache of marker icons, keyed by a style key defined by the application.<p>
+ * Icons are created on demand by an {@link IconFactory}, and the least recently used icons
+ * are evicted once the total size of the cached bitmaps exceeds the maximum size.
+ * Since the same {@link BitmapDescriptor} is returned for the same style key,
+ * markers sharing a style share a single bitmap.
+ * @author Taeho Kim
+ *
+ */
+public class MarkerIconCache {
+	private LinkedHashMap<String, Icon> mIcons;
+	private IconFactory mIconFactory;
+
+	private long mMaxSize;
+	private long mSize;
+	private int mHitCount;
+	private int mMissCount;
+	private int mEvictionCount;
+
+	/**
+	 * Creates an icon cache.
+	 * @param maxSize Maximum total size of the cached bitmaps, in bytes.
+	 */
+	public MarkerIconCache(long maxSize){
+		if(maxSize<=0){
+			throw new IllegalArgumentException("Max size should be greater than 0.");
+		}
+		mMaxSize = maxSize;
+		mIcons = new LinkedHashMap<String, Icon>(16, 0.75f, true);
+	}
+
+	/**
+	 * Sets the factory that creates icons not found in the cache.
+	 * @param factory Icon factory, or null.
+	 */
+	public synchronized void setIconFactory(IconFactory factory){
+		mIconFactory = factory;
+	}
+
+	/**
+	 * Returns the icon of given style, creating it with the {@link IconFactory} if it is not cached.
+	 * @param styleKey Style key of the icon
+	 * @return The icon, or null if it is not cached and can't be created.
+	 */
+	public synchronized BitmapDescriptor get(String styleKey){
+		Icon icon = mIcons.get(styleKey);
+		if(icon!=null){
+			mHitCount++;
+			return icon.descriptor;
+		}
+		mMissCount++;
+		if(mIconFactory==null){
+			return null;
+		}
+		Bitmap bitmap = mIconFactory.createIcon(styleKey);
+		if(bitmap==null){
+			return null;
+		}
+		return putInternal(styleKey, bitmap).descriptor;
+	}
+
+	/**
+	 * Puts an icon of given style, replacing the cached one if any.
+	 * @param styleKey Style key of the icon
+	 * @param bitmap Bitmap of the icon
+	 * @return The icon that was put
+	 */
+	public synchronized BitmapDescriptor put(String styleKey, Bitmap bitmap){
+		return putInternal(styleKey, bitmap).descriptor;
+	}
+
+	public synchronized void remove(String styleKey){
+		Icon icon = mIcons.remove(styleKey);
+		if(icon!=null){
+			mSize -= icon.size;
+		}
+	}
+
+	public synchronized void evictAll(){
+		mIcons.clear();
+		mSize = 0;
+	}
+
+	/**
+	 * Sets the maximum total size of the cached bitmaps, evicting icons if needed.
+	 * @param maxSize Maximum size in bytes
+	 */
+	public synchronized void setMaxSize(long maxSize){
+		if(maxSize<=0){
+			throw new IllegalArgumentException("Max size should be greater than 0.");
+		}
+		mMaxSize = maxSize;
+		trimToSize(maxSize);
+	}
+
+	public synchronized long getMaxSize(){
+		return mMaxSize;
+	}
+
+	/**
+	 * Returns the total size of the cached bitmaps, in bytes.
+	 * @return Size of the cache
+	 */
+	public synchronized long getSize(){
+		return mSize;
+	}
+
+	public synchronized int getCount(){
+		return mIcons.size();
+	}
+
+	public synchronized int getHitCount(){
+		return mHitCount;
+	}
+
+	public synchronized int getMissCount(){
+		return mMissCount;
+	}
+
+	public synchronized int getEvictionCount(){
+		return mEvictionCount;
+	}
+
+	private Icon putInternal(String styleKey, Bitmap bitmap){
+		Icon icon = new Icon(BitmapDescriptorFactory.fromBitmap(bitmap),
+				(long)bitmap.getRowBytes() * bitmap.getHeight());
+		if(icon.size>mMaxSize){
+			// Never fits, hand it out without caching
+			return icon;
+		}
+		Icon old = mIcons.put(styleKey, icon);
+		if(old!=null){
+			mSize -= old.size;
+		}
+		mSize += icon.size;
+		trimToSize(mMaxSize);
+		return icon;
+	}
+
+	private void trimToSize(long maxSize){
+		Iterator<Entry<String, Icon>> iterator = mIcons.entrySet().iterator();
+		while(mSize>maxSize && iterator.hasNext()){
+			Icon icon = iterator.next().getValue();
+			iterator.remove();
+			mSize -= icon.size;
+			mEvictionCount++;
+		}
+	}
+
+	private static class Icon {
+		final BitmapDescriptor descriptor;
+		final long size;
+
+		Icon(BitmapDescriptor descriptor, long size){
+			this.descriptor = descriptor;
+			this.size = size;
+		}
+	}
+
+	/**
+	 * Creates marker icons for style keys that are not in the cache.
+	 * @author Taeho Kim
+	 */
+	public interface IconFactory {
+
+		/**
+		 * Called when an icon of given style is requested but not cached.
+		 * @param styleKey Style key of the icon
+		 * @return Bitmap of the icon, or null if the style is unknown.
+		 */
+		public Bitmap createIcon(String styleKey);
+	}
+
+}
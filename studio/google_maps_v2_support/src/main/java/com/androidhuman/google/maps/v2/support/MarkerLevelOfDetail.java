@@ -0,0 +1,146 @@
+/*
+ * Copyright 2013 Taeho Kim (jyte82@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.androidhuman.google.maps.v2.support;
+
+import java.util.ArrayList;
+
+import com.google.android.gms.maps.model.BitmapDescriptor;
+
+/**
+ * Level-of-detail rule of markers, defining at which zoom levels markers exist
+ * and which icon they use at each zoom level.<p>
+ * Zoom levels are split into bands, each starting at a zoom level and having its own icon,
+ * given either as a descriptor or as a style key of the {@link MarkerIconCache}.
+ * Below the first band, the icon of the first band is used.
+ * A rule without bands leaves the icon of markers alone.<p>
+ * A rule is meant to be shared by many markers, e.g. one rule per category or priority,
+ * and should not be changed once it is set on markers.
+ * <pre>
+ * MarkerLevelOfDetail rule = new MarkerLevelOfDetail()
+ *     .zoomRange(8, MarkerLevelOfDetail.MAX_ZOOM)
+ *     .band(8, dotIcon)
+ *     .band(15, "shop_full");
+ * </pre>
+ * @author Taeho Kim
+ *
+ */
+public class MarkerLevelOfDetail {
+	public static final float MIN_ZOOM = 0;
+	public static final float MAX_ZOOM = Float.MAX_VALUE;
+
+	static final int LEVEL_HIDDEN = -1;
+
+	private float mMinZoom = MIN_ZOOM;
+	private float mMaxZoom = MAX_ZOOM;
+	private ArrayList<Band> mBands = new ArrayList<Band>();
+
+	/**
+	 * Sets the zoom levels at which markers exist. Markers are removed from map outside of them.
+	 * @param minZoom Minimum zoom level, inclusive.
+	 * @param maxZoom Maximum zoom level, exclusive.
+	 * @return This rule
+	 */
+	public MarkerLevelOfDetail zoomRange(float minZoom, float maxZoom){
+		if(minZoom>=maxZoom){
+			throw new IllegalArgumentException("Min zoom should be less than max zoom.");
+		}
+		mMinZoom = minZoom;
+		mMaxZoom = maxZoom;
+		return this;
+	}
+
+	/**
+	 * Adds a band using given icon from given zoom level, up to the next band.
+	 * @param fromZoom Zoom level the band starts at
+	 * @param icon Icon of the band
+	 * @return This rule
+	 */
+	public MarkerLevelOfDetail band(float fromZoom, BitmapDescriptor icon){
+		return addBand(new Band(fromZoom, icon, null));
+	}
+
+	/**
+	 * Adds a band using the icon of given style from given zoom level, up to the next band.
+	 * See {@link MarkerManager#setIconCache(MarkerIconCache)}.
+	 * @param fromZoom Zoom level the band starts at
+	 * @param styleKey Style key of the band's icon
+	 * @return This rule
+	 */
+	public MarkerLevelOfDetail band(float fromZoom, String styleKey){
+		return addBand(new Band(fromZoom, null, styleKey));
+	}
+
+	public float getMinZoom(){
+		return mMinZoom;
+	}
+
+	public float getMaxZoom(){
+		return mMaxZoom;
+	}
+
+	private MarkerLevelOfDetail addBand(Band band){
+		int i = mBands.size();
+		while(i>0 && mBands.get(i - 1).fromZoom>band.fromZoom){
+			i--;
+		}
+		if(i>0 && mBands.get(i - 1).fromZoom==band.fromZoom){
+			mBands.set(i - 1, band);
+		}else{
+			mBands.add(i, band);
+		}
+		return this;
+	}
+
+	/**
+	 * Returns the level of markers at given zoom level: the index of the band,
+	 * or {@link #LEVEL_HIDDEN} if markers should not exist.
+	 */
+	int levelAt(float zoom){
+		if(zoom<mMinZoom || zoom>=mMaxZoom){
+			return LEVEL_HIDDEN;
+		}
+		int level = 0;
+		for(int i=1; i<mBands.size() && mBands.get(i).fromZoom<=zoom; i++){
+			level = i;
+		}
+		return level;
+	}
+
+	boolean hasBands(){
+		return !mBands.isEmpty();
+	}
+
+	BitmapDescriptor getIcon(int level){
+		return mBands.get(level).icon;
+	}
+
+	String getStyleKey(int level){
+		return mBands.get(level).styleKey;
+	}
+
+	private static class Band {
+		final float fromZoom;
+		final BitmapDescriptor icon;
+		final String styleKey;
+
+		Band(float fromZoom, BitmapDescriptor icon, String styleKey){
+			this.fromZoom = fromZoom;
+			this.icon = icon;
+			this.styleKey = styleKey;
+		}
+	}
+}
@@ -16,42 +16,84 @@
  */
 package com.androidhuman.google.maps.v2.support;
 
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
-import java.util.LinkedHashMap;
+import java.util.Iterator;
+import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicLong;
 
 import android.util.Log;
 
 import com.androidhuman.google.maps.v2.support.SupportGoogleMap.SupportOnInfoWindowClickListener;
 import com.androidhuman.google.maps.v2.support.SupportGoogleMap.SupportOnMarkerClickListener;
 import com.androidhuman.google.maps.v2.support.SupportGoogleMap.SupportOnMarkerDragListener;
+import com.androidhuman.google.maps.v2.support.SupportGoogleMap.SupportOnMarkerDragPositionListener;
+import com.androidhuman.google.maps.v2.support.SupportGoogleMap.SupportOnMarkerStreamListener;
+import com.androidhuman.google.maps.v2.support.SupportGoogleMap.SupportOnMarkersAddListener;
 import com.androidhuman.google.maps.v2.support.model.SupportMarker;
 import com.google.android.gms.maps.GoogleMap;
+import com.google.android.gms.maps.GoogleMap.OnCameraChangeListener;
 import com.google.android.gms.maps.GoogleMap.OnInfoWindowClickListener;
 import com.google.android.gms.maps.GoogleMap.OnMarkerClickListener;
 import com.google.android.gms.maps.GoogleMap.OnMarkerDragListener;
+import com.google.android.gms.maps.model.BitmapDescriptor;
+import com.google.android.gms.maps.model.CameraPosition;
 import com.google.android.gms.maps.model.LatLng;
+import com.google.android.gms.maps.model.LatLngBounds;
 import com.google.android.gms.maps.model.Marker;
 import com.google.android.gms.maps.model.MarkerOptions;
 
 public class MarkerManager 
-	implements OnInfoWindowClickListener, OnMarkerClickListener, OnMarkerDragListener{
+	implements OnInfoWindowClickListener, OnMarkerClickListener, OnMarkerDragListener, OnCameraChangeListener{
 	
 	private static final String TAG = "gmap_v2_support_marker";
 	
+	private static final float DEFAULT_VIRTUALIZATION_MARGIN = 0.5f;
+	
 	private GoogleMap mGoogleMap;
-	private HashMap<Long, Marker> mMarkerMap;
-	private HashMap<Marker, Long> mMarkerIdMap;
+	private LongObjectRegistry<SupportMarker> mSupportMarkerMap;
+	private LongObjectRegistry<Marker> mMarkerMap;
+	private HashMap<Marker, SupportMarker> mMarkerRefMap;
+	private MarkerBulkLoader mBulkLoader;
+	private MarkerQuadTree mIndex;
+	private MarkerClusterer mClusterer;
+	private MarkerIconCache mIconCache;
+	private MarkerPool mMarkerPool;
+	private MarkerAnimator mAnimator;
+	private MarkerReconciler mReconciler;
+	private MarkerBatch mBatch;
+	private MarkerGroups mGroups;
+	private MarkerStore mStore;
+	private LongObjectRegistry<Boolean> mStoreMaterialized;
+	private SupportInfoWindowAdapter<?> mInfoWindowAdapter;
+	private ExecutorService mStreamExecutor;
+	private ArrayList<MarkerStream> mStreams;
+	private LevelOfDetailTracker mLevelOfDetail;
+	
+	private boolean mIsVirtualized = false;
+	private float mVirtualizationMargin = DEFAULT_VIRTUALIZATION_MARGIN;
+	private LatLngBounds mMaterializedBounds;
 	
 	private SupportOnInfoWindowClickListener mInfoWindowClickListener;
 	private SupportOnMarkerClickListener mMarkerClickListener;
-	private SupportOnMarkerDragListener mMarkerDragListener;
+	private MarkerDragDispatcher mDragDispatcher;
+	private MarkerMutationQueue mMutationQueue;
+	// Highest id posted to the mutation queue, which can be raised from any thread
+	private AtomicLong mPostedMaxId = new AtomicLong(Long.MIN_VALUE);
 	
 	public MarkerManager(){
-		mMarkerMap = new LinkedHashMap<Long, Marker>();
-		mMarkerIdMap = new LinkedHashMap<Marker, Long>();
+		mSupportMarkerMap = new LongObjectRegistry<SupportMarker>();
+		mMarkerMap = new LongObjectRegistry<Marker>();
+		mMarkerRefMap = new HashMap<Marker, SupportMarker>();
+		mBulkLoader = new MarkerBulkLoader(this);
+		mIndex = new MarkerQuadTree();
+		mStreams = new ArrayList<MarkerStream>();
+		mDragDispatcher = new MarkerDragDispatcher();
 	}
 	
 	public MarkerManager(GoogleMap map){
@@ -65,9 +107,8 @@ public class MarkerManager
 	 * @return The {@link SupportMarker} object that was added
 	 */
 	public SupportMarker add(MarkerOptions options){
-		long id = mMarkerMap.size();
-		Marker marker = addMarkerWithRef(id, options);
-		return new SupportMarker(id, marker);
+		long id = nextId();
+		return addMarkerWithRef(id, options);
 	}
 	
 	/**
@@ -77,12 +118,11 @@ public class MarkerManager
 	 * @return The {@link SupportMarker} object that was added
 	 */
 	public SupportMarker add(String title, LatLng position){
-		long id = mMarkerMap.size();
+		long id = nextId();
 		MarkerOptions options = new MarkerOptions();
 		options.position(position);
 		options.title(title);
-		Marker marker = addMarkerWithRef(id, options);
-		return new SupportMarker(id, marker);
+		return addMarkerWithRef(id, options);
 	}
 	
 	/**
@@ -93,13 +133,12 @@ public class MarkerManager
 	 * @return The {@link SupportMarker} object that was added
 	 */
 	public SupportMarker add(String title, String snippet, LatLng position){
-		long id = mMarkerMap.size();
+		long id = nextId();
 		MarkerOptions options = new MarkerOptions();
 		options.position(position);
 		options.title(title);
 		options.snippet(snippet);
-		Marker marker = addMarkerWithRef(id, options);
-		return new SupportMarker(id, marker);
+		return addMarkerWithRef(id, options);
 	}
 	
 	/**
@@ -109,38 +148,493 @@ public class MarkerManager
 	 * @return The {@link SupportMarker} object that was added
 	 */
 	public SupportMarker add(long id, MarkerOptions options){
-		Marker marker = mGoogleMap.addMarker(options);
-		mMarkerMap.put(id, marker);
-		return new SupportMarker(id,marker);
+		return addMarkerWithRef(id, options);
+	}
+	
+	/**
+	 * Adds a marker to map with auto-generated marker id, using the icon of given style.
+	 * See {@link #setIconCache(MarkerIconCache)}.
+	 * @param options A marker options object that defines how to render the marker. Its icon is replaced.
+	 * @param styleKey Style key of the marker's icon
+	 * @return The {@link SupportMarker} object that was added
+	 */
+	public SupportMarker add(MarkerOptions options, String styleKey){
+		return addMarkerWithRef(nextId(), options.icon(getIcon(styleKey)));
+	}
+	
+	/**
+	 * Adds a marker to map with given marker id, using the icon of given style.
+	 * See {@link #setIconCache(MarkerIconCache)}.
+	 * @param id Marker's id
+	 * @param options A marker options object that defines how to render the marker. Its icon is replaced.
+	 * @param styleKey Style key of the marker's icon
+	 * @return The {@link SupportMarker} object that was added
+	 */
+	public SupportMarker add(long id, MarkerOptions options, String styleKey){
+		return addMarkerWithRef(id, options.icon(getIcon(styleKey)));
+	}
+	
+	/**
+	 * Adds a marker to map with auto-generated marker id, following given level-of-detail rule.
+	 * See {@link #setLevelOfDetail(SupportMarker, MarkerLevelOfDetail)}.
+	 * @param options A marker options object that defines how to render the marker.
+	 * @param rule Level-of-detail rule of the marker
+	 * @return The {@link SupportMarker} object that was added
+	 */
+	public SupportMarker add(MarkerOptions options, MarkerLevelOfDetail rule){
+		return add(nextId(), options, rule);
+	}
+	
+	/**
+	 * Adds a marker to map with given marker id, following given level-of-detail rule.
+	 * See {@link #setLevelOfDetail(SupportMarker, MarkerLevelOfDetail)}.
+	 * @param id Marker's id
+	 * @param options A marker options object that defines how to render the marker.
+	 * @param rule Level-of-detail rule of the marker
+	 * @return The {@link SupportMarker} object that was added
+	 */
+	public SupportMarker add(long id, MarkerOptions options, MarkerLevelOfDetail rule){
+		if(mSupportMarkerMap.containsKey(id)){
+			// Removed first, so that removing it doesn't detach the new rule
+			removeById(id);
+		}
+		// Attach first, so that the marker goes on map only if it should, with the right icon
+		BitmapDescriptor icon = getLevelOfDetailTracker().attach(id, rule);
+		if(icon!=null){
+			options.icon(icon);
+		}
+		return addMarkerWithRef(id, options);
+	}
+	
+	
+	/**
+	 * Adds markers to map with auto-generated marker ids.<p>
+	 * Ids are assigned immediately, but markers are added to map over the following frames
+	 * so that each frame spends no more than the frame budget on it.
+	 * See {@link #setFrameBudget(long)}.
+	 * @param options Marker options objects that define how to render the markers.
+	 * @param listener Callback that reports progress of the insertion, or null.
+	 * @return Ids of the markers, in the iteration order of given options.
+	 */
+	public long[] addAll(Collection<MarkerOptions> options, SupportOnMarkersAddListener listener){
+		long[] ids = new long[options.size()];
+		MarkerOptions[] optionsArray = options.toArray(new MarkerOptions[ids.length]);
+		for(int i=0; i<ids.length; i++){
+			ids[i] = nextId();
+		}
+		mBulkLoader.enqueue(ids, optionsArray, listener);
+		return ids;
+	}
+	
+	/**
+	 * Adds markers to map with auto-generated marker ids.
+	 * See {@link #addAll(Collection, SupportOnMarkersAddListener)}.
+	 * @param options Marker options objects that define how to render the markers.
+	 * @return Ids of the markers, in the iteration order of given options.
+	 */
+	public long[] addAll(Collection<MarkerOptions> options){
+		return addAll(options, null);
+	}
+	
+	/**
+	 * Adds markers to map with given marker ids.<p>
+	 * Markers are added to map over the following frames
+	 * so that each frame spends no more than the frame budget on it.
+	 * See {@link #setFrameBudget(long)}.
+	 * @param options Marker options objects that define how to render the markers, keyed by marker's id.
+	 * @param listener Callback that reports progress of the insertion, or null.
+	 */
+	public void addAll(Map<Long, MarkerOptions> options, SupportOnMarkersAddListener listener){
+		long[] ids = new long[options.size()];
+		MarkerOptions[] optionsArray = new MarkerOptions[ids.length];
+		int i = 0;
+		for(Entry<Long, MarkerOptions> entry : options.entrySet()){
+			ids[i] = entry.getKey();
+			mSupportMarkerMap.reserveId(ids[i]);
+			optionsArray[i] = entry.getValue();
+			i++;
+		}
+		mBulkLoader.enqueue(ids, optionsArray, listener);
+	}
+	
+	/**
+	 * Adds markers to map with given marker ids.
+	 * See {@link #addAll(Map, SupportOnMarkersAddListener)}.
+	 * @param options Marker options objects that define how to render the markers, keyed by marker's id.
+	 */
+	public void addAll(Map<Long, MarkerOptions> options){
+		addAll(options, null);
+	}
+	
+	/**
+	 * Makes the markers of this manager match given markers.<p>
+	 * Given markers are compared with the current ones in background. Then, on the main thread,
+	 * missing markers are added, changed markers are updated in place, and markers absent
+	 * from given ones are removed. Markers that did not change are left untouched.
+	 * A new submission replaces the one being compared or applied, if any.
+	 * See {@link #getMarkerReconciler()} for counters of the applied operations.
+	 * @param options Options of every marker that should exist, keyed by marker's id.
+	 */
+	public void submit(Map<Long, MarkerOptions> options){
+		for(Long id : options.keySet()){
+			mSupportMarkerMap.reserveId(id);
+		}
+		getMarkerReconciler().submit(options);
+	}
+	
+	/**
+	 * Returns the reconciler that applies markers passed to {@link #submit(Map)}.
+	 * @return The {@link MarkerReconciler}
+	 */
+	public MarkerReconciler getMarkerReconciler(){
+		if(mReconciler==null){
+			mReconciler = new MarkerReconciler(this);
+		}
+		return mReconciler;
+	}
+	
+	/**
+	 * Returns the queue through which any thread can add, update and remove markers.
+	 * Should be called on the main thread; the returned queue can then be used from any thread.
+	 * @return The {@link MarkerMutationQueue}
+	 */
+	public MarkerMutationQueue getMutationQueue(){
+		if(mMutationQueue==null){
+			mMutationQueue = new MarkerMutationQueue(this);
+		}
+		return mMutationQueue;
+	}
+	
+	/**
+	 * Adds markers produced by given producer, with auto-generated marker ids.<p>
+	 * The producer runs on a background thread, and blocks while the markers it produced
+	 * wait to be added, so that only a bounded number of markers is held in memory at once.
+	 * Markers are added on the following frames, within the frame budget.
+	 * See {@link MarkerStream}.
+	 * @param producer Producer of the markers
+	 * @param queueCapacity Maximum number of markers waiting to be added
+	 * @param listener Callback that reports progress of the stream, or null.
+	 * @return The stream, which can be cancelled.
+	 */
+	public MarkerStream addStream(MarkerStream.Producer producer, int queueCapacity, SupportOnMarkerStreamListener listener){
+		if(mStreamExecutor==null){
+			mStreamExecutor = BackgroundExecutors.newCachedThreadPool("MarkerStream");
+		}
+		MarkerStream stream = new MarkerStream(this, queueCapacity, listener);
+		mStreams.add(stream);
+		stream.start(mStreamExecutor, producer);
+		return stream;
+	}
+	
+	/**
+	 * Adds markers produced by given producer, with auto-generated marker ids.
+	 * See {@link #addStream(MarkerStream.Producer, int, SupportOnMarkerStreamListener)}.
+	 * @param producer Producer of the markers
+	 * @param listener Callback that reports progress of the stream, or null.
+	 * @return The stream, which can be cancelled.
+	 */
+	public MarkerStream addStream(MarkerStream.Producer producer, SupportOnMarkerStreamListener listener){
+		return addStream(producer, MarkerStream.DEFAULT_QUEUE_CAPACITY, listener);
+	}
+	
+	/**
+	 * Adds markers read from given iterator on a background thread, with auto-generated marker ids.
+	 * See {@link #addStream(MarkerStream.Producer, int, SupportOnMarkerStreamListener)}.
+	 * @param options Iterator of marker options objects, which is read on a background thread.
+	 * @param listener Callback that reports progress of the stream, or null.
+	 * @return The stream, which can be cancelled.
+	 */
+	public MarkerStream addStream(Iterator<MarkerOptions> options, SupportOnMarkerStreamListener listener){
+		return addStream(MarkerStream.fromIterator(options), MarkerStream.DEFAULT_QUEUE_CAPACITY, listener);
+	}
+	
+	/**
+	 * Cancels every stream that is still adding markers.
+	 */
+	public void cancelStreams(){
+		// Cancelling removes the stream from the list
+		while(!mStreams.isEmpty()){
+			mStreams.get(mStreams.size() - 1).cancel();
+		}
 	}
 	
+	void onStreamFinished(MarkerStream stream){
+		mStreams.remove(stream);
+	}
+	
+	/**
+	 * Returns the number of markers queued by addAll() that were not added to map yet.
+	 * @return The number of pending markers.
+	 */
+	public int getPendingCount(){
+		return mBulkLoader.getPendingCount();
+	}
+	
+	/**
+	 * Sets the maximum time that can be spent on adding queued markers in a single frame.
+	 * Default value is {@value MarkerBulkLoader#DEFAULT_FRAME_BUDGET_MS}ms.
+	 * @param millis Frame budget in milliseconds
+	 */
+	public void setFrameBudget(long millis){
+		mBulkLoader.setFrameBudget(millis);
+	}
+	
+	long getFrameBudget(){
+		return mBulkLoader.getFrameBudget();
+	}
 	
-	private Marker addMarkerWithRef(long id, MarkerOptions options){
-		Marker marker = mGoogleMap.addMarker(options);
-		mMarkerMap.put(id, marker);
+	SupportMarker addMarkerWithRef(long id, MarkerOptions options){
+		if(mBatch!=null){
+			// Adding replaces the marker, along with any pending change
+			mBatch.discard(id);
+		}
+		if(mSupportMarkerMap.containsKey(id)){
+			// The replaced marker leaves its cluster, group, rule and animation behind
+			removeById(id);
+		}
+		// Copied, as callers commonly reuse one options object for several markers
+		options = MarkerOptionsUtils.copy(options);
+		SupportMarker marker = new SupportMarker(id, null, options);
+		mSupportMarkerMap.put(id, marker);
+		mIndex.put(id, options.getPosition());
+		if(mClusterer!=null){
+			mClusterer.onMarkerAdded(id, options.getPosition());
+		}
+		syncOnMap(id);
 		return marker;
 	}
 	
+	private long nextId(){
+		// Ids posted from other threads may not be in the registry yet
+		mSupportMarkerMap.reserveId(mPostedMaxId.get());
+		return mSupportMarkerMap.newId();
+	}
+	
+	/**
+	 * Makes sure given id is never handed out by this manager. Can be called from any thread.
+	 */
+	void reservePostedId(long id){
+		while(true){
+			long max = mPostedMaxId.get();
+			if(id<=max || mPostedMaxId.compareAndSet(max, id)){
+				return;
+			}
+		}
+	}
+	
+	private void addMarkerOnMap(SupportMarker marker){
+		boolean isHidden = isHiddenByGroup(marker.getId());
+		Marker m = mMarkerPool!=null ? mMarkerPool.obtain(marker.getOptions(), isHidden) : null;
+		if(m==null){
+			MarkerOptions options = marker.getOptions();
+			if(isHidden && options.isVisible()){
+				options = MarkerOptionsUtils.copy(options).visible(false);
+			}
+			m = mGoogleMap.addMarker(options);
+		}
+		mMarkerMap.put(marker.getId(), m);
+		mMarkerRefMap.put(m, marker);
+		marker.setMarker(m);
+	}
+	
+	private void removeMarkerOnMap(long id){
+		SupportMarker marker = mSupportMarkerMap.get(id);
+		boolean isRenderedAsRecorded = marker!=null && (mAnimator==null || !mAnimator.isAnimating(id));
+		removeMarkerOnMap(id, isRenderedAsRecorded ? marker.getOptions() : null);
+	}
+	
+	/**
+	 * Removes the {@link Marker} of given id from map, or recycles it if the marker pool is enabled.
+	 * @param renderedOptions Options the marker is currently rendered with, or null if unknown.
+	 */
+	private void removeMarkerOnMap(long id, MarkerOptions renderedOptions){
+		Marker m = mMarkerMap.remove(id);
+		if(m!=null){
+			mMarkerRefMap.remove(m);
+			if(mMarkerPool!=null){
+				mMarkerPool.recycle(m, renderedOptions);
+			}else{
+				m.remove();
+			}
+		}
+		SupportMarker marker = mSupportMarkerMap.get(id);
+		if(marker!=null){
+			marker.setMarker(null);
+		}
+	}
+	
+	/**
+	 * Adds or removes the {@link Marker} of given id, depending on whether it should be on map.
+	 */
+	void syncOnMap(long id){
+		SupportMarker marker = mSupportMarkerMap.get(id);
+		if(marker==null){
+			return;
+		}
+		boolean shouldBeOnMap = shouldBeOnMap(id, marker.getOptions().getPosition());
+		if(shouldBeOnMap && marker.getMarker()==null){
+			addMarkerOnMap(marker);
+		}else if(!shouldBeOnMap && marker.getMarker()!=null){
+			removeMarkerOnMap(id);
+		}
+	}
+	
+	private boolean shouldBeOnMap(long id, LatLng position){
+		if(mLevelOfDetail!=null && mLevelOfDetail.isHidden(id)){
+			return false;
+		}
+		if(mClusterer!=null && mClusterer.isClustered(id)){
+			return false;
+		}
+		if(!mIsVirtualized){
+			return true;
+		}
+		return mMaterializedBounds!=null && mMaterializedBounds.contains(position);
+	}
+	
+	LongObjectRegistry<SupportMarker> getRecords(){
+		return mSupportMarkerMap;
+	}
+	
+	MarkerQuadTree getIndex(){
+		return mIndex;
+	}
+	
+	/**
+	 * Returns the {@link Marker} of given id if it is on map.
+	 */
+	Marker getLiveMarker(long id){
+		return mMarkerMap.get(id);
+	}
+	
 	public void clear(boolean clearObjectsInMap){
+		mDragDispatcher.endDrag();
+		mBulkLoader.cancel();
+		cancelStreams();
+		if(mBatch!=null){
+			mBatch.clear();
+		}
+		if(mReconciler!=null){
+			mReconciler.cancel();
+		}
+		if(mMutationQueue!=null){
+			mMutationQueue.clear();
+		}
+		if(mAnimator!=null){
+			mAnimator.cancelAll();
+		}
 		if(clearObjectsInMap){
 			mGoogleMap.clear();
 		}
+		mSupportMarkerMap.clear();
 		mMarkerMap.clear();
-		mMarkerIdMap.clear();
+		mMarkerRefMap.clear();
+		if(mMarkerPool!=null){
+			// Pooled markers belong to this manager, not to whoever clears the map
+			mMarkerPool.clear(true);
+		}
+		mIndex.clear();
+		if(mClusterer!=null){
+			mClusterer.clear();
+		}
+		if(mLevelOfDetail!=null){
+			mLevelOfDetail.clear();
+		}
+		if(mGroups!=null){
+			mGroups.clear();
+		}
+		if(mStore!=null){
+			mStore.clear();
+			mStoreMaterialized.clear();
+		}
+		if(mInfoWindowAdapter!=null){
+			mInfoWindowAdapter.invalidateAll();
+		}
 	}
 	
-	private long findIdByMarker(Marker marker){
-		if(mMarkerIdMap.containsKey(marker)){
-			return mMarkerIdMap.get(marker);
+	/**
+	 * Clears this manager, leaving its markers on map, and stops its background threads.
+	 * The manager should not be used afterwards.
+	 */
+	public void destroy(){
+		clear(false);
+		if(mClusterer!=null){
+			mClusterer.destroy();
+			mClusterer = null;
 		}
-		
-		Set<Entry<Long, Marker>> entries = mMarkerMap.entrySet();
-		for(Entry<Long, Marker> entry : entries){
-			Marker m = entry.getValue();
-			if(m.equals(marker)){
-				mMarkerIdMap.put(marker, entry.getKey());
-				return entry.getKey();
-			}
+		if(mReconciler!=null){
+			mReconciler.destroy();
+			mReconciler = null;
+		}
+		if(mStreamExecutor!=null){
+			mStreamExecutor.shutdownNow();
+			mStreamExecutor = null;
+		}
+		mDragDispatcher.setPositionListener(null, false);
+	}
+	
+	/**
+	 * Finds markers inside given bounds, using positions tracked by this manager.
+	 * The map is not queried.
+	 * @param bounds Bounds to search. Bounds crossing the 180th meridian are supported.
+	 * @return Ids of the markers inside the bounds, in no particular order.
+	 */
+	public long[] getMarkerIdsIn(LatLngBounds bounds){
+		LongList ids = new LongList();
+		mIndex.query(bounds, ids);
+		return ids.toArray();
+	}
+	
+	/**
+	 * Finds markers within given distance from a position, using positions tracked by this manager.
+	 * The map is not queried.
+	 * @param center Center of the search
+	 * @param meters Search radius in meters
+	 * @return Ids of the markers within the radius, in no particular order.
+	 */
+	public long[] getMarkerIdsAround(LatLng center, double meters){
+		LongList ids = new LongList();
+		mIndex.query(center, meters, ids);
+		return ids.toArray();
+	}
+	
+	/**
+	 * Finds the markers closest to a position, using positions tracked by this manager.
+	 * The map is not queried.
+	 * @param position Position to search from
+	 * @param count Maximum number of markers to find
+	 * @return Ids of the closest markers, nearest first.
+	 */
+	public long[] nearest(LatLng position, int count){
+		LongList ids = new LongList(Math.min(count, mIndex.size()));
+		mIndex.nearest(position, count, Double.MAX_VALUE, ids);
+		return ids.toArray();
+	}
+	
+	/**
+	 * Finds markers within given distance from a position, using positions tracked by this manager.
+	 * The map is not queried.
+	 * @param center Center of the search
+	 * @param meters Search radius in meters
+	 * @return Ids of the markers within the radius, nearest first.
+	 */
+	public long[] within(LatLng center, double meters){
+		LongList ids = new LongList();
+		mIndex.nearest(center, Integer.MAX_VALUE, meters, ids);
+		return ids.toArray();
+	}
+	
+	/**
+	 * Returns the managed marker a {@link Marker} on map belongs to, or null.
+	 */
+	SupportMarker getRecordOf(Marker marker){
+		return mMarkerRefMap.get(marker);
+	}
+	
+	private long findIdByMarker(Marker marker){
+		SupportMarker supportMarker = mMarkerRefMap.get(marker);
+		if(supportMarker!=null){
+			return supportMarker.getId();
 		}
 		throw new IllegalArgumentException("No id exists that matches given marker.");
 	}
@@ -154,22 +648,33 @@ public class MarkerManager
 		}
 	}
 	
+	/**
+	 * Returns the marker with given id, whether it is on map or not.
+	 * @param id Marker's id
+	 * @return The {@link SupportMarker} object with given id
+	 */
+	public SupportMarker getSupportMarker(long id){
+		SupportMarker marker = mSupportMarkerMap.get(id);
+		if(marker!=null){
+			return marker;
+		}else{
+			throw new IllegalArgumentException("Marker with given id="+id+" does not exists.");
+		}
+	}
+	
+	/**
+	 * Updates a marker with given options.<p>
+	 * If the marker is on map, only the properties that differ are changed on it,
+	 * without re-creating the marker.
+	 * @param marker The marker to update
+	 * @param options New options of the marker
+	 */
 	public void update(SupportMarker marker, MarkerOptions options){
 		if(marker==null){
 			Log.e(TAG, "Marker is null. Did you instantiated the Marker properly?");
 			return;
 		}
-		Marker oldMarker = marker.getMarker();
-		oldMarker.remove();
-		mMarkerMap.remove(marker.getId());
-		
-		Marker newMarker = mGoogleMap.addMarker(options);
-		if(oldMarker.isInfoWindowShown()){
-			newMarker.showInfoWindow();
-		}
-		mMarkerMap.put(marker.getId(), newMarker);
-		updateMarkerIdRefIfNeeded(marker.getId(), oldMarker, newMarker);
-		marker.setMarker(newMarker);
+		submitUpdate(marker, options);
 	}
 	
 	public void update(SupportMarker marker, LatLng position){
@@ -177,21 +682,10 @@ public class MarkerManager
 			Log.e(TAG, "Marker is null. Did you instantiated the Marker properly?");
 			return;
 		}
-		Marker oldMarker = marker.getMarker();
-		Marker newMarker = mGoogleMap.addMarker(
-				new MarkerOptions()
-					.title(oldMarker.getTitle())
-					.snippet(oldMarker.getSnippet())
-					.position(position)
-					.draggable(oldMarker.isDraggable()));
-		if(oldMarker.isInfoWindowShown()){
-			newMarker.showInfoWindow();
+		MarkerOptions options = copyOptionsOf(marker);
+		if(options!=null){
+			submitUpdate(marker, options.position(position));
 		}
-		updateMarkerIdRefIfNeeded(marker.getId(), oldMarker, newMarker);
-		oldMarker.remove();
-		mMarkerMap.remove(marker.getId());
-		mMarkerMap.put(marker.getId(), newMarker);
-		marker.setMarker(newMarker);
 	}
 	
 	public void update(SupportMarker marker, String title){
@@ -199,21 +693,10 @@ public class MarkerManager
 			Log.e(TAG, "Marker is null. Did you instantiated the Marker properly?");
 			return;
 		}
-		Marker oldMarker = marker.getMarker();
-		Marker newMarker = mGoogleMap.addMarker(
-				new MarkerOptions()
-					.title(title)
-					.snippet(oldMarker.getSnippet())
-					.position(oldMarker.getPosition())
-					.draggable(oldMarker.isDraggable()));
-		if(oldMarker.isInfoWindowShown()){
-			newMarker.showInfoWindow();
+		MarkerOptions options = copyOptionsOf(marker);
+		if(options!=null){
+			submitUpdate(marker, options.title(title));
 		}
-		updateMarkerIdRefIfNeeded(marker.getId(), oldMarker, newMarker);
-		oldMarker.remove();
-		mMarkerMap.remove(marker.getId());
-		mMarkerMap.put(marker.getId(), newMarker);
-		marker.setMarker(newMarker);
 	}
 	
 	public void update(SupportMarker marker, String title, String snippet){
@@ -221,109 +704,955 @@ public class MarkerManager
 			Log.e(TAG, "Marker is null. Did you instantiated the Marker properly?");
 			return;
 		}
-		Marker oldMarker = marker.getMarker();
-		Marker newMarker = mGoogleMap.addMarker(
-				new MarkerOptions()
-					.title(title)
-					.snippet(snippet)
-					.position(oldMarker.getPosition())
-					.draggable(oldMarker.isDraggable()));
-		if(oldMarker.isInfoWindowShown()){
-			newMarker.showInfoWindow();
+		MarkerOptions options = copyOptionsOf(marker);
+		if(options!=null){
+			submitUpdate(marker, options.title(title).snippet(snippet));
 		}
-		updateMarkerIdRefIfNeeded(marker.getId(), oldMarker, newMarker);
-		oldMarker.remove();
-		mMarkerMap.remove(marker.getId());
-		mMarkerMap.put(marker.getId(), newMarker);
-		marker.setMarker(newMarker);
 	}
 	
-	public void remove(SupportMarker aMarker){
-		if(aMarker==null){
+	/**
+	 * Updates a marker with given options, using the icon of given style.
+	 * See {@link #update(SupportMarker, MarkerOptions)}.
+	 * @param marker The marker to update
+	 * @param options New options of the marker. Its icon is replaced.
+	 * @param styleKey Style key of the marker's icon
+	 */
+	public void update(SupportMarker marker, MarkerOptions options, String styleKey){
+		if(marker==null){
 			Log.e(TAG, "Marker is null. Did you instantiated the Marker properly?");
 			return;
 		}
-		Marker marker = aMarker.getMarker();
-		mMarkerMap.remove(aMarker.getId());
-		mMarkerIdMap.remove(marker);
-		marker.remove();
+		submitUpdate(marker, options.icon(getIcon(styleKey)));
 	}
 	
-	public void remove(Marker marker){
+	/**
+	 * Changes the icon of a marker to the icon of given style.
+	 * The icon is not set again if the marker already uses the cached icon.
+	 * @param marker The marker to update
+	 * @param styleKey Style key of the marker's icon
+	 */
+	public void updateStyle(SupportMarker marker, String styleKey){
 		if(marker==null){
 			Log.e(TAG, "Marker is null. Did you instantiated the Marker properly?");
 			return;
 		}
-		Collection<Marker> values = mMarkerMap.values();
-		for(Marker m : values){
-			if(marker.equals(m)){
-				mMarkerMap.remove(m);
-				mMarkerIdMap.remove(m);
-				m.remove();
-				break;
-			}
+		MarkerOptions options = copyOptionsOf(marker);
+		if(options!=null){
+			submitUpdate(marker, options.icon(getIcon(styleKey)));
 		}
 	}
 	
-	public void setGoogleMap(GoogleMap map){
-		this.mGoogleMap = map;
-		mGoogleMap.setOnInfoWindowClickListener(this);
-		mGoogleMap.setOnMarkerClickListener(this);
-		mGoogleMap.setOnMarkerDragListener(this);
+	private MarkerOptions copyOptionsOf(SupportMarker marker){
+		SupportMarker record = mSupportMarkerMap.get(marker.getId());
+		if(record==null || (isBatching() && mBatch.isRemoved(marker.getId()))){
+			Log.e(TAG, "Marker with given id="+marker.getId()+" does not exists.");
+			return null;
+		}
+		MarkerOptions pending = isBatching() ? mBatch.getPendingOptions(marker.getId()) : null;
+		return MarkerOptionsUtils.copy(pending!=null ? pending : record.getOptions());
 	}
 	
-	public void setOnInfoWindowClickListener(SupportOnInfoWindowClickListener listener){
-		this.mInfoWindowClickListener = listener;
+	/**
+	 * Applies an update, or records it if a batch is in progress.
+	 */
+	private void submitUpdate(SupportMarker marker, MarkerOptions options){
+		if(!isBatching()){
+			applyUpdate(marker, options);
+			return;
+		}
+		long id = marker.getId();
+		if(!mSupportMarkerMap.containsKey(id) || mBatch.isRemoved(id)){
+			Log.e(TAG, "Marker with given id="+id+" does not exists.");
+			return;
+		}
+		mBatch.update(id, options);
 	}
 	
-	public void setOnMarkerClickListener(SupportOnMarkerClickListener listener){
-		mMarkerClickListener = listener;
+	/**
+	 * Starts a batch of marker changes.<p>
+	 * Until the batch is committed, updates and removals are recorded instead of being applied.
+	 * Changes to the same marker are merged, the last change of each property winning,
+	 * so that each marker is touched at most once when the batch is committed.
+	 * Batches can be nested; changes are applied when the outermost batch is committed.
+	 * Markers are still added immediately.
+	 */
+	public void beginBatch(){
+		if(mBatch==null){
+			mBatch = new MarkerBatch(this);
+		}
+		mBatch.begin();
 	}
 	
-	public void setOnMarkerDragListener(SupportOnMarkerDragListener listener){
-		mMarkerDragListener = listener;
-	}
-
-	private void updateMarkerIdRefIfNeeded(long id, Marker oldMarker, Marker newMarker){
-		if(mMarkerIdMap.remove(oldMarker)!=null){
-			mMarkerIdMap.put(newMarker, id);
+	/**
+	 * Ends a batch started with {@link #beginBatch()}, applying the recorded changes.
+	 * @throws IllegalStateException If no batch is in progress.
+	 */
+	public void commit(){
+		if(mBatch==null){
+			throw new IllegalStateException("No batch is in progress.");
 		}
+		mBatch.commit();
 	}
-
-	@Override
-	public void onInfoWindowClick(Marker marker) {
-		if(mInfoWindowClickListener!=null){
-			long id = findIdByMarker(marker);
-			mInfoWindowClickListener.onInfoWindowClick(id, marker);
+	
+	/**
+	 * Ends a batch started with {@link #beginBatch()}, applying the recorded changes on the next frame.
+	 * Changes made until then, including those of other batches, are merged with them.
+	 * @throws IllegalStateException If no batch is in progress.
+	 */
+	public void commitOnNextFrame(){
+		if(mBatch==null){
+			throw new IllegalStateException("No batch is in progress.");
 		}
+		mBatch.commitOnNextFrame();
 	}
-
-	@Override
-	public void onMarkerDrag(Marker marker) {
-		if(mMarkerDragListener!=null){
-			long id = findIdByMarker(marker);
-			mMarkerDragListener.onMarkerDrag(id, marker);
-		}
+	
+	/**
+	 * Returns the number of changes recorded in batches so far.
+	 * @return The number of batched changes
+	 */
+	public int getBatchedOperationCount(){
+		return mBatch!=null ? mBatch.getOperationCount() : 0;
 	}
-
-	@Override
-	public void onMarkerDragEnd(Marker marker) {
-		if(mMarkerDragListener!=null){
-			long id = findIdByMarker(marker);
-			mMarkerDragListener.onMarkerDragEnd(id, marker);
+	
+	/**
+	 * Returns the number of batched changes that were merged into a change of the same marker,
+	 * and so did not touch the map on their own.
+	 * @return The number of coalesced changes
+	 */
+	public int getCoalescedOperationCount(){
+		return mBatch!=null ? mBatch.getCoalescedCount() : 0;
+	}
+	
+	private boolean isBatching(){
+		return mBatch!=null && mBatch.isRecording();
+	}
+	
+	void updateById(long id, MarkerOptions options){
+		SupportMarker record = mSupportMarkerMap.get(id);
+		if(record!=null){
+			applyUpdate(record, options);
 		}
 	}
-
+	
+	private void applyUpdate(SupportMarker marker, MarkerOptions options){
+		long id = marker.getId();
+		SupportMarker record = mSupportMarkerMap.get(id);
+		if(record==null){
+			Log.e(TAG, "Marker with given id="+id+" does not exists.");
+			return;
+		}
+		// Recorded options are never shared with the caller
+		options = MarkerOptionsUtils.copy(options);
+		MarkerOptions oldOptions = record.getOptions();
+		MarkerOptions renderedOptions = oldOptions;
+		if(mAnimator!=null && mAnimator.isAnimating(id)
+				&& (!MarkerOptionsUtils.equals(oldOptions.getPosition(), options.getPosition())
+						|| oldOptions.getRotation()!=options.getRotation())){
+			// Moving the marker overrides the animation, which left it somewhere in between
+			mAnimator.cancel(id);
+			renderedOptions = null;
+		}
+		
+		// Deal with the marker on map first, while it is known to be rendered with the old options
+		Marker m = record.getMarker();
+		if(m!=null){
+			if(shouldBeOnMap(id, options.getPosition())){
+				MarkerOptionsUtils.apply(m, renderedOptions, options, isHiddenByGroup(id));
+			}else{
+				removeMarkerOnMap(id, renderedOptions);
+			}
+		}
+		
+		record.setOptions(options);
+		if(mInfoWindowAdapter!=null){
+			mInfoWindowAdapter.invalidate(id);
+		}
+		if(!MarkerOptionsUtils.equals(oldOptions.getPosition(), options.getPosition())){
+			mIndex.put(id, options.getPosition());
+			if(mClusterer!=null){
+				mClusterer.onMarkerMoved(id, options.getPosition());
+			}
+		}
+		syncOnMap(id);
+		
+		if(marker!=record){
+			marker.setOptions(options);
+			marker.setMarker(record.getMarker());
+		}
+	}
+	
+	/**
+	 * Moves a marker smoothly to given position, keeping its rotation.
+	 * See {@link #animate(SupportMarker, LatLng, float, long)}.
+	 * @param marker The marker to move
+	 * @param position Target position
+	 * @param duration Duration of the move, in milliseconds
+	 */
+	public void animate(SupportMarker marker, LatLng position, long duration){
+		animate(marker, position, Float.NaN, duration);
+	}
+	
+	/**
+	 * Moves and rotates a marker smoothly to given position and rotation.<p>
+	 * All moving markers are animated together on each frame. A marker that is already moving
+	 * heads for the new target from where it currently is.
+	 * The marker keeps its previous position for queries and clustering until it arrives,
+	 * and updating its position or rotation stops the animation.
+	 * See {@link #setMaxAnimatedMarkersPerFrame(int)}.
+	 * @param marker The marker to move
+	 * @param position Target position
+	 * @param rotation Target rotation, in degrees clockwise
+	 * @param duration Duration of the move, in milliseconds
+	 */
+	public void animate(SupportMarker marker, LatLng position, float rotation, long duration){
+		if(marker==null){
+			Log.e(TAG, "Marker is null. Did you instantiated the Marker properly?");
+			return;
+		}
+		SupportMarker record = mSupportMarkerMap.get(marker.getId());
+		if(record==null){
+			Log.e(TAG, "Marker with given id="+marker.getId()+" does not exists.");
+			return;
+		}
+		if(mAnimator==null){
+			mAnimator = new MarkerAnimator(this);
+		}
+		MarkerOptions options = record.getOptions();
+		mAnimator.animate(marker.getId(), options.getPosition(), options.getRotation(), position, rotation, duration);
+	}
+	
+	/**
+	 * Stops moving a marker, leaving it where it currently is.
+	 * @param marker The marker to stop
+	 */
+	public void stopAnimation(SupportMarker marker){
+		if(marker==null){
+			Log.e(TAG, "Marker is null. Did you instantiated the Marker properly?");
+			return;
+		}
+		if(mAnimator!=null){
+			mAnimator.stop(marker.getId());
+		}
+	}
+	
+	/**
+	 * Returns the number of markers that are currently moving.
+	 * @return The number of animating markers
+	 */
+	public int getAnimatingCount(){
+		return mAnimator!=null ? mAnimator.getCount() : 0;
+	}
+	
+	/**
+	 * Sets how many moving markers can be updated on a single frame.
+	 * When more markers are moving, they take turns over the following frames.
+	 * Default value is {@value MarkerAnimator#DEFAULT_MAX_MARKERS_PER_FRAME}.
+	 * @param count Maximum number of markers updated per frame
+	 */
+	public void setMaxAnimatedMarkersPerFrame(int count){
+		if(mAnimator==null){
+			mAnimator = new MarkerAnimator(this);
+		}
+		mAnimator.setMaxMarkersPerFrame(count);
+	}
+	
+	void onAnimationEnd(long id, double latitude, double longitude, float rotation){
+		SupportMarker record = mSupportMarkerMap.get(id);
+		if(record==null){
+			return;
+		}
+		LatLng position = new LatLng(latitude, longitude);
+		MarkerOptions options = MarkerOptionsUtils.copy(record.getOptions())
+				.position(position)
+				.rotation(rotation);
+		applyUpdate(record, options);
+		// The update is diffed against the recorded options, not against the last frame the marker was left at,
+		// e.g. nothing is set when the marker comes back to where it started
+		Marker m = record.getMarker();
+		if(m!=null){
+			m.setPosition(position);
+			m.setRotation(rotation);
+		}
+	}
+	
+	public void remove(SupportMarker aMarker){
+		if(aMarker==null){
+			Log.e(TAG, "Marker is null. Did you instantiated the Marker properly?");
+			return;
+		}
+		if(isBatching()){
+			if(mSupportMarkerMap.containsKey(aMarker.getId())){
+				mBatch.remove(aMarker.getId());
+			}
+			return;
+		}
+		removeById(aMarker.getId());
+		aMarker.setMarker(null);
+	}
+	
+	public void remove(Marker marker){
+		if(marker==null){
+			Log.e(TAG, "Marker is null. Did you instantiated the Marker properly?");
+			return;
+		}
+		SupportMarker supportMarker = mMarkerRefMap.get(marker);
+		if(supportMarker==null){
+			return;
+		}
+		if(isBatching()){
+			mBatch.remove(supportMarker.getId());
+		}else{
+			removeById(supportMarker.getId());
+		}
+	}
+	
+	void removeById(long id){
+		mDragDispatcher.onMarkerRemoved(id);
+		if(mStoreMaterialized!=null && mStoreMaterialized.remove(id)!=null){
+			// Removing a marker taken from the store removes it for good
+			mStore.remove(id);
+		}
+		if(mAnimator!=null){
+			mAnimator.cancel(id);
+		}
+		removeMarkerOnMap(id);
+		mSupportMarkerMap.remove(id);
+		mIndex.remove(id);
+		if(mLevelOfDetail!=null){
+			mLevelOfDetail.detach(id);
+		}
+		if(mGroups!=null){
+			mGroups.remove(id);
+		}
+		if(mInfoWindowAdapter!=null){
+			mInfoWindowAdapter.invalidate(id);
+		}
+		if(mClusterer!=null){
+			mClusterer.onMarkerRemoved(id);
+		}
+	}
+	
+	public void setGoogleMap(GoogleMap map){
+		this.mGoogleMap = map;
+		mGoogleMap.setOnInfoWindowClickListener(this);
+		mGoogleMap.setOnMarkerClickListener(this);
+		mGoogleMap.setOnMarkerDragListener(this);
+		if(mInfoWindowAdapter!=null){
+			mGoogleMap.setInfoWindowAdapter(mInfoWindowAdapter);
+		}
+		if(mClusterer!=null && !mClusterer.hasGoogleMap()){
+			// Clustering was enabled before the map was set, clusters are computed now
+			mClusterer.setGoogleMap(map);
+			mClusterer.onCameraChange(map.getCameraPosition());
+		}
+	}
+	
+	/**
+	 * Sets the cache that provides icons for the methods taking a style key.
+	 * @param cache Icon cache, or null.
+	 */
+	public void setIconCache(MarkerIconCache cache){
+		mIconCache = cache;
+	}
+	
+	public MarkerIconCache getIconCache(){
+		return mIconCache;
+	}
+	
+	BitmapDescriptor getIcon(String styleKey){
+		if(mIconCache==null){
+			throw new IllegalStateException("Icon cache is not set.");
+		}
+		BitmapDescriptor icon = mIconCache.get(styleKey);
+		if(icon==null){
+			Log.e(TAG, "No icon exists for style key="+styleKey+". Default icon is used.");
+		}
+		return icon;
+	}
+	
+	/**
+	 * Sets the adapter rendering info windows of the markers managed by this manager.
+	 * Its cached content is dropped as markers are updated or removed.
+	 * @param adapter Info window adapter, or null to use the default info window.
+	 */
+	public void setInfoWindowAdapter(SupportInfoWindowAdapter<?> adapter){
+		if(mInfoWindowAdapter!=null){
+			mInfoWindowAdapter.setMarkerManager(null);
+		}
+		mInfoWindowAdapter = adapter;
+		if(adapter!=null){
+			adapter.setMarkerManager(this);
+		}
+		if(mGoogleMap!=null){
+			mGoogleMap.setInfoWindowAdapter(adapter);
+		}
+	}
+	
+	public SupportInfoWindowAdapter<?> getInfoWindowAdapter(){
+		return mInfoWindowAdapter;
+	}
+	
+	public void setOnInfoWindowClickListener(SupportOnInfoWindowClickListener listener){
+		this.mInfoWindowClickListener = listener;
+	}
+	
+	public void setOnMarkerClickListener(SupportOnMarkerClickListener listener){
+		mMarkerClickListener = listener;
+	}
+	
+	public void setOnMarkerDragListener(SupportOnMarkerDragListener listener){
+		mDragDispatcher.setListener(listener);
+	}
+	
+	/**
+	 * Sets a drag listener that receives copies of the marker positions,
+	 * and can therefore be called on a background thread.
+	 * Events are delivered in order, and drag events superseded by a newer one
+	 * before the listener gets to them are skipped.
+	 * @param listener Drag listener, or null.
+	 * @param inBackground true to call the listener on a background thread, false for the main thread.
+	 */
+	public void setOnMarkerDragListener(SupportOnMarkerDragPositionListener listener, boolean inBackground){
+		mDragDispatcher.setPositionListener(listener, inBackground);
+	}
+	
+	/**
+	 * Limits how often drag listeners are notified while a marker is dragged.<p>
+	 * A drag event arriving sooner than given interval after the previous one is held back
+	 * and delivered once the interval has elapsed, with the latest position of the marker.
+	 * Start and end of a drag are always delivered, exactly once per drag.
+	 * @param minIntervalMillis Minimum interval between drag events in milliseconds,
+	 * e.g. 100 for at most 10 events per second, or 0 to deliver every drag event.
+	 */
+	public void setMarkerDragThrottle(long minIntervalMillis){
+		mDragDispatcher.setMinInterval(minIntervalMillis);
+	}
+	
+	public long getMarkerDragThrottle(){
+		return mDragDispatcher.getMinInterval();
+	}
+	
+	/**
+	 * Returns the number of drag events received from the map.
+	 * @return The number of raw drag events
+	 */
+	public int getRawDragEventCount(){
+		return mDragDispatcher.getRawDragCount();
+	}
+	
+	/**
+	 * Returns the number of drag events delivered to the listeners.
+	 * @return The number of delivered drag events
+	 */
+	public int getDeliveredDragEventCount(){
+		return mDragDispatcher.getDeliveredDragCount();
+	}
+
+	/**
+	 * Enables or disables virtualization of markers.<p>
+	 * When enabled, every marker is still managed by this manager, but only markers
+	 * inside the camera bounds (plus the margin) have a {@link Marker} on map.
+	 * Markers are added to and removed from map as the camera moves.
+	 * See {@link #setVirtualizationMargin(float)}.
+	 * @param enabled true to enable virtualization, false to put every marker on map.
+	 */
+	public void setVirtualizationEnabled(boolean enabled){
+		if(mIsVirtualized==enabled){
+			return;
+		}
+		mIsVirtualized = enabled;
+		if(enabled){
+			refreshVirtualizedMarkers();
+		}else{
+			mMaterializedBounds = null;
+			syncAllOnMap();
+		}
+	}
+	
+	public boolean isVirtualizationEnabled(){
+		return mIsVirtualized;
+	}
+	
+	/**
+	 * Sets how far outside the camera bounds markers are kept on map when virtualization is enabled.
+	 * Default value is {@value #DEFAULT_VIRTUALIZATION_MARGIN}.
+	 * @param margin Margin on each side, as a fraction of the visible width and height.
+	 */
+	public void setVirtualizationMargin(float margin){
+		if(margin<0){
+			throw new IllegalArgumentException("Margin should not be negative.");
+		}
+		mVirtualizationMargin = margin;
+		if(mIsVirtualized){
+			refreshVirtualizedMarkers();
+		}
+	}
+	
+	private void syncAllOnMap(){
+		for(int slot=mSupportMarkerMap.firstSlot(); slot>=0; slot=mSupportMarkerMap.nextSlot(slot)){
+			syncOnMap(mSupportMarkerMap.keyAt(slot));
+		}
+	}
+	
+	private void refreshVirtualizedMarkers(){
+		if(mGoogleMap==null){
+			return;
+		}
+		mMaterializedBounds = computeMaterializedBounds();
+		
+		// Remove markers that went out of bounds
+		LongList ids = new LongList();
+		for(int slot=mMarkerMap.firstSlot(); slot>=0; slot=mMarkerMap.nextSlot(slot)){
+			long id = mMarkerMap.keyAt(slot);
+			if(!mMaterializedBounds.contains(mIndex.getPosition(id))){
+				ids.add(id);
+			}
+		}
+		for(int i=0; i<ids.size(); i++){
+			removeMarkerOnMap(ids.get(i));
+		}
+		
+		// Add markers that came into bounds
+		ids.clear();
+		mIndex.query(mMaterializedBounds, ids);
+		for(int i=0; i<ids.size(); i++){
+			syncOnMap(ids.get(i));
+		}
+	}
+
+	private LatLngBounds computeMaterializedBounds(){
+		LatLngBounds visibleBounds = mGoogleMap.getProjection().getVisibleRegion().latLngBounds;
+		return GeoUtils.expandBounds(visibleBounds, mVirtualizationMargin);
+	}
+	
+	/**
+	 * Attaches a compact store of logical markers.<p>
+	 * Stored markers are turned into managed markers only while they are inside the camera bounds
+	 * plus the virtualization margin, and go back to the store when the camera moves away,
+	 * along with their current position and title. Meanwhile they can be updated, animated or grouped
+	 * like any other marker, and removing one removes it from the store.<p>
+	 * Ids of stored markers should not be used by other markers of this manager.
+	 * Call {@link #refreshStoredMarkers()} after changing the store.
+	 * @param store Marker store, or null to detach the current store.
+	 * Markers taken from the current store are put back in it and removed from this manager.
+	 */
+	public void setMarkerStore(MarkerStore store){
+		if(mStore==store){
+			return;
+		}
+		if(mStore!=null){
+			long[] ids = mStoreMaterialized.keys();
+			for(long id : ids){
+				putBackInStore(id);
+			}
+		}
+		mStore = store;
+		mStoreMaterialized = store!=null ? new LongObjectRegistry<Boolean>() : null;
+		if(store!=null){
+			refreshStoredMarkers();
+		}
+	}
+	
+	public MarkerStore getMarkerStore(){
+		return mStore;
+	}
+	
+	/**
+	 * Returns the number of stored markers currently turned into managed markers.
+	 * @return The number of markers taken from the store
+	 */
+	public int getMaterializedStoreCount(){
+		return mStoreMaterialized!=null ? mStoreMaterialized.size() : 0;
+	}
+	
+	/**
+	 * Takes the stored markers that came around the camera into this manager,
+	 * and puts back those that went away. Called when the camera changes.
+	 */
+	public void refreshStoredMarkers(){
+		if(mStore==null || mGoogleMap==null){
+			return;
+		}
+		mSupportMarkerMap.reserveId(mStore.getMaxId());
+		LatLngBounds bounds = mIsVirtualized && mMaterializedBounds!=null
+				? mMaterializedBounds : computeMaterializedBounds();
+		
+		LongList ids = new LongList();
+		for(int slot=mStoreMaterialized.firstSlot(); slot>=0; slot=mStoreMaterialized.nextSlot(slot)){
+			long id = mStoreMaterialized.keyAt(slot);
+			SupportMarker record = mSupportMarkerMap.get(id);
+			if(record==null || !bounds.contains(record.getOptions().getPosition())){
+				ids.add(id);
+			}
+		}
+		for(int i=0; i<ids.size(); i++){
+			putBackInStore(ids.get(i));
+		}
+		
+		ids.clear();
+		mStore.query(bounds, ids);
+		for(int i=0; i<ids.size(); i++){
+			long id = ids.get(i);
+			if(!mStoreMaterialized.containsKey(id)){
+				addMarkerWithRef(id, mStore.toOptions(id));
+				// Marked afterwards, as replacing a marker of the same id would remove it from the store
+				mStoreMaterialized.put(id, Boolean.TRUE);
+			}
+		}
+	}
+	
+	/**
+	 * Writes a marker taken from the store back to it, and removes it from this manager.
+	 */
+	private void putBackInStore(long id){
+		mStoreMaterialized.remove(id);
+		SupportMarker record = mSupportMarkerMap.get(id);
+		if(record==null){
+			return;
+		}
+		MarkerOptions options = record.getOptions();
+		mStore.put(id, options.getPosition(), options.getTitle());
+		removeById(id);
+	}
+	
+	/**
+	 * Sets the level-of-detail rule of a marker.<p>
+	 * The marker is removed from map at zoom levels outside of the rule's zoom range,
+	 * and uses the icon of the rule's band matching the current zoom level, replacing its own icon.
+	 * Rules are evaluated again only when the camera crosses a zoom level where the rule changes,
+	 * and then only the markers following that rule are touched.
+	 * @param marker The marker
+	 * @param rule Level-of-detail rule, or null to remove the rule. The marker keeps its current icon.
+	 */
+	public void setLevelOfDetail(SupportMarker marker, MarkerLevelOfDetail rule){
+		if(marker==null){
+			Log.e(TAG, "Marker is null. Did you instantiated the Marker properly?");
+			return;
+		}
+		long id = marker.getId();
+		if(!mSupportMarkerMap.containsKey(id)){
+			Log.e(TAG, "Marker with given id="+id+" does not exists.");
+			return;
+		}
+		if(rule!=null){
+			applyLevelOfDetail(id, getLevelOfDetailTracker().attach(id, rule));
+		}else if(mLevelOfDetail!=null){
+			mLevelOfDetail.detach(id);
+			syncOnMap(id);
+		}
+	}
+	
+	private LevelOfDetailTracker getLevelOfDetailTracker(){
+		if(mLevelOfDetail==null){
+			float zoom = mGoogleMap!=null ? mGoogleMap.getCameraPosition().zoom : 0;
+			mLevelOfDetail = new LevelOfDetailTracker(this, zoom);
+		}
+		return mLevelOfDetail;
+	}
+	
+	/**
+	 * Brings a marker in line with the level of its rule.
+	 * @param icon Icon of the level, or null to keep the current icon.
+	 */
+	void applyLevelOfDetail(long id, BitmapDescriptor icon){
+		SupportMarker record = mSupportMarkerMap.get(id);
+		if(record==null){
+			return;
+		}
+		if(icon!=null && record.getOptions().getIcon()!=icon){
+			applyUpdate(record, MarkerOptionsUtils.copy(record.getOptions()).icon(icon));
+		}else{
+			syncOnMap(id);
+		}
+	}
+	
+	/**
+	 * Puts a marker in a named group, taking it out of its previous group.<p>
+	 * A marker belongs to a single group. Groups are shown and hidden as a whole
+	 * with {@link #setGroupVisible(String, boolean)}.
+	 * @param marker The marker
+	 * @param group Name of the group, or null to take the marker out of its group.
+	 */
+	public void setGroup(SupportMarker marker, String group){
+		if(marker==null){
+			Log.e(TAG, "Marker is null. Did you instantiated the Marker properly?");
+			return;
+		}
+		long id = marker.getId();
+		SupportMarker record = mSupportMarkerMap.get(id);
+		if(record==null){
+			Log.e(TAG, "Marker with given id="+id+" does not exists.");
+			return;
+		}
+		if(mGroups==null){
+			if(group==null){
+				return;
+			}
+			mGroups = new MarkerGroups(this);
+		}
+		boolean isChanged = group!=null ? mGroups.put(id, group) : mGroups.remove(id);
+		Marker m = record.getMarker();
+		if(isChanged && m!=null && record.getOptions().isVisible()){
+			m.setVisible(!isHiddenByGroup(id));
+		}
+	}
+	
+	/**
+	 * Returns the group of a marker.
+	 * @param marker The marker
+	 * @return Name of the group, or null if the marker is not in a group.
+	 */
+	public String getGroup(SupportMarker marker){
+		return mGroups!=null ? mGroups.getGroupName(marker.getId()) : null;
+	}
+	
+	/**
+	 * Shows or hides every marker of a group.<p>
+	 * Markers are neither removed nor recreated: they stay on map and are only made invisible.
+	 * For large groups, markers are toggled over the following frames within the frame budget.
+	 * Markers keep their own visibility, so a marker made invisible by its options stays invisible.
+	 * @param group Name of the group
+	 * @param visible true to show the group.
+	 */
+	public void setGroupVisible(String group, boolean visible){
+		if(mGroups==null){
+			if(visible){
+				return;
+			}
+			mGroups = new MarkerGroups(this);
+		}
+		mGroups.setVisible(group, visible);
+	}
+	
+	public boolean isGroupVisible(String group){
+		return mGroups==null || mGroups.isVisible(group);
+	}
+	
+	/**
+	 * Returns whether a group is still showing or hiding its markers over the following frames.
+	 * @param group Name of the group
+	 * @return true if the group is being toggled.
+	 */
+	public boolean isGroupToggling(String group){
+		return mGroups!=null && mGroups.isToggling(group);
+	}
+	
+	/**
+	 * Returns the names of the groups, including groups that became empty.
+	 * @return Names of the groups
+	 */
+	public Set<String> getGroups(){
+		if(mGroups==null){
+			return Collections.emptySet();
+		}
+		return Collections.unmodifiableSet(mGroups.getNames());
+	}
+	
+	/**
+	 * Returns the number of markers in a group.
+	 * @param group Name of the group
+	 * @return The number of markers
+	 */
+	public int getGroupSize(String group){
+		return mGroups!=null ? mGroups.getSize(group) : 0;
+	}
+	
+	/**
+	 * Returns the number of markers in a group that currently have a {@link Marker} on map,
+	 * whether visible or not.
+	 * @param group Name of the group
+	 * @return The number of markers on map
+	 */
+	public int getGroupOnMapCount(String group){
+		return mGroups!=null ? mGroups.getOnMapCount(group) : 0;
+	}
+	
+	/**
+	 * Returns an estimate of the heap used by the markers of a group, in bytes.
+	 * Icons are not counted, as they are shared between markers.
+	 * @param group Name of the group
+	 * @return Estimated memory usage in bytes
+	 */
+	public long getGroupMemoryEstimate(String group){
+		return mGroups!=null ? mGroups.getMemoryEstimate(group) : 0;
+	}
+	
+	private boolean isHiddenByGroup(long id){
+		return mGroups!=null && mGroups.isHidden(id);
+	}
+	
+	/**
+	 * Sets how many markers removed from map are kept hidden for reuse.<p>
+	 * Reusing a pooled marker only changes its properties, instead of adding a new marker to map,
+	 * which makes markers entering and leaving the viewport much cheaper with virtualization.
+	 * Pooled markers stay on map while hidden. The pool is disabled by default.
+	 * @param maxSize Maximum number of pooled markers, or 0 to disable the pool.
+	 */
+	public void setMarkerPoolSize(int maxSize){
+		if(maxSize<0){
+			throw new IllegalArgumentException("Pool size should not be negative.");
+		}
+		if(maxSize==0){
+			if(mMarkerPool!=null){
+				mMarkerPool.clear(true);
+				mMarkerPool = null;
+			}
+		}else if(mMarkerPool==null){
+			mMarkerPool = new MarkerPool(maxSize);
+		}else{
+			mMarkerPool.setMaxSize(maxSize);
+		}
+	}
+	
+	public int getMarkerPoolSize(){
+		return mMarkerPool!=null ? mMarkerPool.getMaxSize() : 0;
+	}
+	
+	/**
+	 * Returns the number of hidden markers currently in the pool.
+	 * @return The number of pooled markers
+	 */
+	public int getPooledMarkerCount(){
+		return mMarkerPool!=null ? mMarkerPool.size() : 0;
+	}
+	
+	/**
+	 * Returns the fraction of markers put on map by reusing a pooled marker.
+	 * @return Hit rate between 0 and 1, or 0 if the pool was never used.
+	 */
+	public float getMarkerPoolHitRate(){
+		if(mMarkerPool==null){
+			return 0;
+		}
+		int total = mMarkerPool.getHitCount() + mMarkerPool.getMissCount();
+		return total>0 ? (float)mMarkerPool.getHitCount() / total : 0;
+	}
+	
+	/**
+	 * Enables or disables clustering of markers.<p>
+	 * When enabled, markers close to each other on screen are replaced by a single cluster marker.
+	 * Clusters are recomputed when the zoom level changes, and first computed once a map is set.
+	 * Use {@link #getMarkerClusterer()} to configure clustering.
+	 * @param enabled true to enable clustering.
+	 */
+	public void setClusteringEnabled(boolean enabled){
+		if(enabled==(mClusterer!=null)){
+			return;
+		}
+		if(enabled){
+			mClusterer = new MarkerClusterer(this, mGoogleMap);
+			if(mGoogleMap!=null){
+				mClusterer.onCameraChange(mGoogleMap.getCameraPosition());
+			}
+		}else{
+			mClusterer.destroy();
+			mClusterer = null;
+			syncAllOnMap();
+		}
+	}
+	
+	public boolean isClusteringEnabled(){
+		return mClusterer!=null;
+	}
+	
+	/**
+	 * Returns the clusterer of this manager.
+	 * @return The {@link MarkerClusterer}, or null if clustering is disabled.
+	 */
+	public MarkerClusterer getMarkerClusterer(){
+		return mClusterer;
+	}
+	
+	@Override
+	public void onCameraChange(CameraPosition position) {
+		if(mLevelOfDetail!=null){
+			mLevelOfDetail.onZoomChange(position.zoom);
+		}
+		if(mClusterer!=null){
+			mClusterer.onCameraChange(position);
+		}
+		if(mIsVirtualized){
+			refreshVirtualizedMarkers();
+		}
+		if(mStore!=null){
+			refreshStoredMarkers();
+		}
+		if(mInfoWindowAdapter!=null && mInfoWindowAdapter.isPrefetchEnabled() && mGoogleMap!=null){
+			mInfoWindowAdapter.prefetch(getMarkerIdsIn(
+					mGoogleMap.getProjection().getVisibleRegion().latLngBounds));
+		}
+	}
+
+	@Override
+	public void onInfoWindowClick(Marker marker) {
+		if(mClusterer!=null && mClusterer.isClusterMarker(marker)){
+			return;
+		}
+		if(mInfoWindowClickListener!=null){
+			long id = findIdByMarker(marker);
+			mInfoWindowClickListener.onInfoWindowClick(id, marker);
+		}
+	}
+
+	@Override
+	public void onMarkerDrag(Marker marker) {
+		if(mDragDispatcher.hasListener()){
+			long id = findIdByMarker(marker);
+			mDragDispatcher.onDrag(id, marker);
+		}
+	}
+
+	@Override
+	public void onMarkerDragEnd(Marker marker) {
+		SupportMarker record = mMarkerRefMap.get(marker);
+		if(record!=null){
+			// Recorded before listeners are notified, so that they can update the marker from there
+			recordDraggedPosition(record, marker.getPosition());
+		}
+		if(mDragDispatcher.hasListener()){
+			// Clustering may have taken the marker off map already
+			long id = record!=null ? record.getId() : findIdByMarker(marker);
+			mDragDispatcher.onDragEnd(id, marker);
+		}
+		if(record!=null){
+			// The marker may now be clustered or out of the materialized bounds
+			syncOnMap(record.getId());
+		}
+	}
+	
+	/**
+	 * Records the position a marker was dragged to, as updates start from the recorded options.
+	 */
+	private void recordDraggedPosition(SupportMarker record, LatLng position){
+		long id = record.getId();
+		MarkerOptions options = record.getOptions();
+		if(MarkerOptionsUtils.equals(options.getPosition(), position)){
+			return;
+		}
+		if(mAnimator!=null){
+			// The marker is where it was dropped, not where the animation would take it
+			mAnimator.cancel(id);
+		}
+		record.setOptions(MarkerOptionsUtils.copy(options).position(position));
+		mIndex.put(id, position);
+		if(mClusterer!=null){
+			mClusterer.onMarkerMoved(id, position);
+		}
+	}
+
 	@Override
 	public void onMarkerDragStart(Marker marker) {
-		if(mMarkerDragListener!=null){
+		if(mDragDispatcher.hasListener()){
 			long id = findIdByMarker(marker);
-			mMarkerDragListener.onMarkerDragStart(id, marker);
+			mDragDispatcher.onDragStart(id, marker);
 		}
 	}
 
 	@Override
 	public boolean onMarkerClick(Marker marker) {
+		if(mClusterer!=null && mClusterer.isClusterMarker(marker)){
+			return mClusterer.onClusterMarkerClick(marker, mMarkerClickListener);
+		}
 		if(marker.isInfoWindowShown()){
 			marker.hideInfoWindow();
 		}else{
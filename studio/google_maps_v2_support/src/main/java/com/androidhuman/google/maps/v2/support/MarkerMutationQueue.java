@@ -0,0 +1,281 @@
+/*
+ * Copyright 2013 Taeho Kim (jyte82@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.androidhuman.google.maps.v2.support;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+import com.google.android.gms.maps.model.MarkerOptions;
+
+/**
+ * Thread-safe front of a {@link MarkerManager}, to which any thread can post marker changes.<p>
+ * Posting never blocks: commands go to a lock-free queue, which the main thread drains once per frame.
+ * Commands for the same id are merged, so only the last state of each marker is applied:
+ * an add or update replaces any earlier add or update, a removal replaces anything before it,
+ * and an update of a marker removed meanwhile is dropped. Merged commands are applied oldest first,
+ * within the frame budget of the manager, and what doesn't fit is applied on the following frames.<p>
+ * Ids are chosen by the caller, as no id can be handed out off the main thread.
+ * An id is reserved as soon as its addition is posted, so the manager never hands it out for another marker.
+ * Get it from {@link MarkerManager#getMutationQueue()} on the main thread.
+ * @author Taeho Kim
+ *
+ */
+public class MarkerMutationQueue implements FrameTicker.Callback {
+	private static final int TYPE_ADD = 0;
+	private static final int TYPE_UPDATE = 1;
+	private static final int TYPE_REMOVE = 2;
+
+	private MarkerManager mMarkerManager;
+	private ConcurrentLinkedQueue<Command> mQueue = new ConcurrentLinkedQueue<Command>();
+	private AtomicInteger mDepth = new AtomicInteger();
+	private AtomicBoolean mIsDrainScheduled = new AtomicBoolean();
+	private Handler mHandler;
+	private FrameTicker mTicker;
+
+	// Merged commands waiting to be applied by id, and in the order they were first posted.
+	// Touched on the main thread only
+	private LongObjectRegistry<Command> mPending = new LongObjectRegistry<Command>();
+	private ArrayDeque<Command> mPendingOrder = new ArrayDeque<Command>();
+
+	private int mPostedCount;
+	private int mMergedCount;
+	private int mAppliedCount;
+	private long mLastLatency;
+	private long mMaxLatency;
+
+	private Runnable mRequestFrame = new Runnable() {
+		@Override
+		public void run() {
+			mTicker.requestFrame();
+		}
+	};
+
+	MarkerMutationQueue(MarkerManager manager){
+		mMarkerManager = manager;
+		mHandler = new Handler(Looper.getMainLooper());
+		mTicker = FrameTicker.create(this);
+	}
+
+	/**
+	 * Posts the addition of a marker, replacing the marker of the same id if any. Can be called from any thread.
+	 * @param id Id of the marker
+	 * @param options A marker options object that defines how to render the marker.
+	 * It should not be modified afterwards.
+	 */
+	public void add(long id, MarkerOptions options){
+		if(options==null){
+			throw new IllegalArgumentException("Options should not be null.");
+		}
+		mMarkerManager.reservePostedId(id);
+		post(new Command(TYPE_ADD, id, options));
+	}
+
+	/**
+	 * Posts an update of a marker. Can be called from any thread.
+	 * @param id Id of the marker
+	 * @param options New options of the marker. It should not be modified afterwards.
+	 */
+	public void update(long id, MarkerOptions options){
+		if(options==null){
+			throw new IllegalArgumentException("Options should not be null.");
+		}
+		post(new Command(TYPE_UPDATE, id, options));
+	}
+
+	/**
+	 * Posts the removal of a marker. Can be called from any thread.
+	 * @param id Id of the marker
+	 */
+	public void remove(long id){
+		post(new Command(TYPE_REMOVE, id, null));
+	}
+
+	/**
+	 * Returns the number of commands posted but not applied yet, before merging.
+	 * Can be called from any thread.
+	 * @return The queue depth
+	 */
+	public int getDepth(){
+		return mDepth.get();
+	}
+
+	/**
+	 * Returns how long the oldest command applied on the last drain waited, in milliseconds.
+	 * @return Latency of the last drain
+	 */
+	public long getLastDrainLatency(){
+		return mLastLatency;
+	}
+
+	/**
+	 * Returns the longest time a command waited before being applied, in milliseconds.
+	 * @return Maximum drain latency
+	 */
+	public long getMaxDrainLatency(){
+		return mMaxLatency;
+	}
+
+	/**
+	 * Returns the number of commands drained from the queue.
+	 * @return The number of drained commands
+	 */
+	public int getPostedCount(){
+		return mPostedCount;
+	}
+
+	/**
+	 * Returns the number of commands that were merged into a later command for the same id.
+	 * @return The number of merged commands
+	 */
+	public int getMergedCount(){
+		return mMergedCount;
+	}
+
+	/**
+	 * Returns the number of commands applied to the manager, after merging.
+	 * @return The number of applied commands
+	 */
+	public int getAppliedCount(){
+		return mAppliedCount;
+	}
+
+	public void resetMetrics(){
+		mPostedCount = 0;
+		mMergedCount = 0;
+		mAppliedCount = 0;
+		mLastLatency = 0;
+		mMaxLatency = 0;
+	}
+
+	/**
+	 * Drops every command not applied yet. Called on the main thread.
+	 */
+	void clear(){
+		Command command;
+		while((command = mQueue.poll())!=null){
+			mDepth.decrementAndGet();
+		}
+		while((command = mPendingOrder.poll())!=null){
+			mDepth.addAndGet(-command.count);
+		}
+		mPending.clear();
+	}
+
+	private void post(Command command){
+		mQueue.offer(command);
+		mDepth.incrementAndGet();
+		if(mIsDrainScheduled.compareAndSet(false, true)){
+			// The ticker is only driven from the main thread
+			mHandler.post(mRequestFrame);
+		}
+	}
+
+	@Override
+	public void onFrame(long frameTimeMillis) {
+		mIsDrainScheduled.set(false);
+		long now = SystemClock.uptimeMillis();
+		long deadline = now + mMarkerManager.getFrameBudget();
+
+		Command command;
+		while((command = mQueue.poll())!=null){
+			mPostedCount++;
+			merge(command);
+		}
+
+		long oldestTime = Long.MAX_VALUE;
+		int applied = 0;
+		while((command = mPendingOrder.poll())!=null){
+			mPending.remove(command.id);
+			apply(command);
+			mDepth.addAndGet(-command.count);
+			oldestTime = Math.min(oldestTime, command.time);
+			applied++;
+			if(SystemClock.uptimeMillis()>=deadline){
+				break;
+			}
+		}
+		mAppliedCount += applied;
+		if(applied>0){
+			mLastLatency = now - oldestTime;
+			mMaxLatency = Math.max(mMaxLatency, mLastLatency);
+		}
+		if(!mPending.isEmpty()){
+			mTicker.requestFrame();
+		}
+	}
+
+	/**
+	 * Merges a command into the pending command of the same id, which keeps its place in line.
+	 */
+	private void merge(Command command){
+		Command pending = mPending.get(command.id);
+		if(pending==null){
+			mPending.put(command.id, command);
+			mPendingOrder.offer(command);
+			return;
+		}
+		mMergedCount++;
+		pending.count++;
+		if(command.type==TYPE_UPDATE){
+			if(pending.type==TYPE_REMOVE){
+				// The marker is gone by then
+				return;
+			}
+			// Updating a marker still to be added changes what is added
+			pending.options = command.options;
+			return;
+		}
+		pending.type = command.type;
+		pending.options = command.options;
+	}
+
+	private void apply(Command command){
+		switch(command.type){
+		case TYPE_ADD:
+			mMarkerManager.add(command.id, command.options);
+			break;
+		case TYPE_UPDATE:
+			mMarkerManager.updateById(command.id, command.options);
+			break;
+		default:
+			mMarkerManager.removeById(command.id);
+			break;
+		}
+	}
+
+	private static class Command {
+		int type;
+		final long id;
+		MarkerOptions options;
+		// Time the earliest merged command was posted, and the number of commands merged into this one
+		long time;
+		int count = 1;
+
+		Command(int type, long id, MarkerOptions options){
+			this.type = type;
+			this.id = id;
+			this.options = options;
+			this.time = SystemClock.uptimeMillis();
+		}
+	}
+}
@@ -0,0 +1,150 @@
+/*
+ * Copyright 2013 Taeho Kim (jyte82@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.androidhuman.google.maps.v2.support;
+
+import com.google.android.gms.maps.model.BitmapDescriptor;
+import com.google.android.gms.maps.model.BitmapDescriptorFactory;
+import com.google.android.gms.maps.model.LatLng;
+import com.google.android.gms.maps.model.Marker;
+import com.google.android.gms.maps.model.MarkerOptions;
+
+/**
+ * Helpers to copy {@link MarkerOptions} and to apply them on existing markers.
+ */
+class MarkerOptionsUtils {
+
+	private MarkerOptionsUtils(){
+	}
+
+	/**
+	 * Returns a new options object with the same properties as given one.
+	 */
+	static MarkerOptions copy(MarkerOptions options){
+		return new MarkerOptions()
+			.position(options.getPosition())
+			.title(options.getTitle())
+			.snippet(options.getSnippet())
+			.icon(options.getIcon())
+			.anchor(options.getAnchorU(), options.getAnchorV())
+			.infoWindowAnchor(options.getInfoWindowAnchorU(), options.getInfoWindowAnchorV())
+			.draggable(options.isDraggable())
+			.visible(options.isVisible())
+			.flat(options.isFlat())
+			.rotation(options.getRotation())
+			.alpha(options.getAlpha());
+	}
+
+	/**
+	 * Changes properties of a marker on map from oldOptions to newOptions,
+	 * calling setters only for the properties that differ.
+	 * If both options are the same object, every property is set.
+	 */
+	static void apply(Marker marker, MarkerOptions oldOptions, MarkerOptions newOptions){
+		apply(marker, oldOptions, newOptions, false);
+	}
+
+	/**
+	 * Same as {@link #apply(Marker, MarkerOptions, MarkerOptions)}, but leaves the marker hidden
+	 * whatever the options say if isHidden is true.
+	 */
+	static void apply(Marker marker, MarkerOptions oldOptions, MarkerOptions newOptions, boolean isHidden){
+		boolean all = oldOptions==newOptions || oldOptions==null;
+		boolean isTextChanged = false;
+
+		if(all || !equals(oldOptions.getPosition(), newOptions.getPosition())){
+			marker.setPosition(newOptions.getPosition());
+		}
+		if(all || !equals(oldOptions.getTitle(), newOptions.getTitle())){
+			marker.setTitle(newOptions.getTitle());
+			isTextChanged = true;
+		}
+		if(all || !equals(oldOptions.getSnippet(), newOptions.getSnippet())){
+			marker.setSnippet(newOptions.getSnippet());
+			isTextChanged = true;
+		}
+		if(all || oldOptions.getIcon()!=newOptions.getIcon()){
+			BitmapDescriptor icon = newOptions.getIcon();
+			marker.setIcon(icon!=null ? icon : BitmapDescriptorFactory.defaultMarker());
+		}
+		if(all || oldOptions.getAnchorU()!=newOptions.getAnchorU()
+				|| oldOptions.getAnchorV()!=newOptions.getAnchorV()){
+			marker.setAnchor(newOptions.getAnchorU(), newOptions.getAnchorV());
+		}
+		if(all || oldOptions.getInfoWindowAnchorU()!=newOptions.getInfoWindowAnchorU()
+				|| oldOptions.getInfoWindowAnchorV()!=newOptions.getInfoWindowAnchorV()){
+			marker.setInfoWindowAnchor(newOptions.getInfoWindowAnchorU(), newOptions.getInfoWindowAnchorV());
+		}
+		if(all || oldOptions.isDraggable()!=newOptions.isDraggable()){
+			marker.setDraggable(newOptions.isDraggable());
+		}
+		if(isHidden){
+			if(all){
+				marker.setVisible(false);
+			}
+		}else if(all || oldOptions.isVisible()!=newOptions.isVisible()){
+			marker.setVisible(newOptions.isVisible());
+		}
+		if(all || oldOptions.isFlat()!=newOptions.isFlat()){
+			marker.setFlat(newOptions.isFlat());
+		}
+		if(all || oldOptions.getRotation()!=newOptions.getRotation()){
+			marker.setRotation(newOptions.getRotation());
+		}
+		if(all || oldOptions.getAlpha()!=newOptions.getAlpha()){
+			marker.setAlpha(newOptions.getAlpha());
+		}
+
+		// Info window does not refresh by itself
+		if(isTextChanged && marker.isInfoWindowShown()){
+			marker.showInfoWindow();
+		}
+	}
+
+	/**
+	 * Returns whether two options render the same marker.
+	 * Icons are compared by identity, as descriptors can't be compared otherwise.
+	 */
+	static boolean isSame(MarkerOptions a, MarkerOptions b){
+		if(a==b){
+			return true;
+		}
+		return equals(a.getPosition(), b.getPosition())
+			&& equals(a.getTitle(), b.getTitle())
+			&& equals(a.getSnippet(), b.getSnippet())
+			&& a.getIcon()==b.getIcon()
+			&& a.getAnchorU()==b.getAnchorU()
+			&& a.getAnchorV()==b.getAnchorV()
+			&& a.getInfoWindowAnchorU()==b.getInfoWindowAnchorU()
+			&& a.getInfoWindowAnchorV()==b.getInfoWindowAnchorV()
+			&& a.isDraggable()==b.isDraggable()
+			&& a.isVisible()==b.isVisible()
+			&& a.isFlat()==b.isFlat()
+			&& a.getRotation()==b.getRotation()
+			&& a.getAlpha()==b.getAlpha();
+	}
+
+	static boolean equals(Object a, Object b){
+		return a==null ? b==null : a.equals(b);
+	}
+
+	static boolean equals(LatLng a, LatLng b){
+		if(a==null || b==null){
+			return a==b;
+		}
+		return a.latitude==b.latitude && a.longitude==b.longitude;
+	}
+}
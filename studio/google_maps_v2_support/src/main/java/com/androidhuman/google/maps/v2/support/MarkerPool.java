@@ -0,0 +1,124 @@
+/*
+ * Copyright 2013 Taeho Kim (jyte82@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.androidhuman.google.maps.v2.support;
+
+import java.util.ArrayList;
+
+import com.google.android.gms.maps.model.Marker;
+import com.google.android.gms.maps.model.MarkerOptions;
+
+/**
+ * Bounded pool of hidden markers, kept on map to be reused instead of adding new ones.<p>
+ * A recycled marker is hidden and remembers the options it was last rendered with,
+ * so that reusing it only changes the properties that differ.
+ * @author Taeho Kim
+ *
+ */
+class MarkerPool {
+	private ArrayList<Marker> mMarkers;
+	private ArrayList<MarkerOptions> mOptions;
+	private int mMaxSize;
+
+	private int mHitCount;
+	private int mMissCount;
+
+	MarkerPool(int maxSize){
+		mMarkers = new ArrayList<Marker>(maxSize);
+		mOptions = new ArrayList<MarkerOptions>(maxSize);
+		mMaxSize = maxSize;
+	}
+
+	/**
+	 * Takes a marker from the pool and renders it with given options.
+	 * @param isHidden true to leave the marker hidden whatever the options say.
+	 * @return The marker, or null if the pool is empty.
+	 */
+	Marker obtain(MarkerOptions options, boolean isHidden){
+		int last = mMarkers.size() - 1;
+		if(last<0){
+			mMissCount++;
+			return null;
+		}
+		mHitCount++;
+		Marker marker = mMarkers.remove(last);
+		MarkerOptions oldOptions = mOptions.remove(last);
+		// Pooled markers are hidden whatever their options say
+		MarkerOptionsUtils.apply(marker, oldOptions, options, true);
+		if(!isHidden && options.isVisible()){
+			marker.setVisible(true);
+		}
+		return marker;
+	}
+
+	/**
+	 * Hides a marker and keeps it for reuse, or removes it from map if the pool is full.
+	 * @param marker The marker to recycle
+	 * @param options Options the marker is currently rendered with,
+	 * or null if unknown, in which case every property is set on reuse.
+	 */
+	void recycle(Marker marker, MarkerOptions options){
+		if(mMarkers.size()>=mMaxSize){
+			marker.remove();
+			return;
+		}
+		marker.setVisible(false);
+		mMarkers.add(marker);
+		mOptions.add(options);
+	}
+
+	void setMaxSize(int maxSize){
+		mMaxSize = maxSize;
+		trimToSize(maxSize);
+	}
+
+	int getMaxSize(){
+		return mMaxSize;
+	}
+
+	int size(){
+		return mMarkers.size();
+	}
+
+	int getHitCount(){
+		return mHitCount;
+	}
+
+	int getMissCount(){
+		return mMissCount;
+	}
+
+	/**
+	 * Removes every pooled marker.
+	 * @param removeFromMap true to remove the markers from map, false if they were removed already.
+	 */
+	void clear(boolean removeFromMap){
+		if(removeFromMap){
+			trimToSize(0);
+		}else{
+			mMarkers.clear();
+			mOptions.clear();
+		}
+	}
+
+	private void trimToSize(int maxSize){
+		while(mMarkers.size()>maxSize){
+			int last = mMarkers.size() - 1;
+			mMarkers.remove(last).remove();
+			mOptions.remove(last);
+		}
+	}
+}
@@ -0,0 +1,469 @@
+/*
+ * Copyright 2013 Taeho Kim (jyte82@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.androidhuman.google.maps.v2.support;
+
+import java.util.Arrays;
+
+import com.google.android.gms.maps.model.LatLng;
+import com.google.android.gms.maps.model.LatLngBounds;
+
+/**
+ * Point quadtree over marker positions, keyed by marker id.<p>
+ * Positions are kept in plain Java, so queries never call into the map.
+ * Longitude is not wrapped here; callers split queries crossing the antimeridian.
+ * @author Taeho Kim
+ *
+ */
+class MarkerQuadTree {
+	private static final int NODE_CAPACITY = 32;
+	private static final int MAX_DEPTH = 24;
+
+	private Node mRoot;
+	private LongObjectRegistry<LatLng> mPositions;
+
+	MarkerQuadTree(){
+		mRoot = new Node(-90, -180, 90, 180, 0);
+		mPositions = new LongObjectRegistry<LatLng>();
+	}
+
+	/**
+	 * Adds or moves an id to given position.
+	 */
+	void put(long id, LatLng position){
+		LatLng old = mPositions.put(id, position);
+		if(old!=null){
+			mRoot.remove(id, old.latitude, old.longitude);
+		}
+		mRoot.insert(id, position.latitude, position.longitude);
+	}
+
+	/**
+	 * Removes an id from the tree.
+	 * @return true if the id was in the tree.
+	 */
+	boolean remove(long id){
+		LatLng old = mPositions.remove(id);
+		if(old==null){
+			return false;
+		}
+		mRoot.remove(id, old.latitude, old.longitude);
+		return true;
+	}
+
+	LatLng getPosition(long id){
+		return mPositions.get(id);
+	}
+
+	/**
+	 * Returns the positions in the tree, keyed by id. The returned registry should not be modified.
+	 */
+	LongObjectRegistry<LatLng> positions(){
+		return mPositions;
+	}
+
+	/**
+	 * Copies ids and positions into arrays that can be read from any thread.
+	 */
+	Snapshot snapshot(){
+		long[] ids = new long[mPositions.size()];
+		LatLng[] positions = new LatLng[ids.length];
+		int i = 0;
+		for(int slot=mPositions.firstSlot(); slot>=0; slot=mPositions.nextSlot(slot)){
+			ids[i] = mPositions.keyAt(slot);
+			positions[i] = mPositions.valueAt(slot);
+			i++;
+		}
+		return new Snapshot(ids, positions);
+	}
+
+	boolean contains(long id){
+		return mPositions.containsKey(id);
+	}
+
+	int size(){
+		return mPositions.size();
+	}
+
+	void clear(){
+		mRoot = new Node(-90, -180, 90, 180, 0);
+		mPositions.clear();
+	}
+
+	/**
+	 * Collects ids inside given bounds. Handles bounds crossing the antimeridian.
+	 */
+	void query(LatLngBounds bounds, LongList out){
+		double south = bounds.southwest.latitude;
+		double north = bounds.northeast.latitude;
+		double west = bounds.southwest.longitude;
+		double east = bounds.northeast.longitude;
+		if(west<=east){
+			mRoot.query(south, west, north, east, out);
+		}else{
+			mRoot.query(south, west, north, 180, out);
+			mRoot.query(south, -180, north, east, out);
+		}
+	}
+
+	/**
+	 * Collects ids within given distance from center, in meters.
+	 */
+	void query(LatLng center, double meters, LongList out){
+		int start = out.size();
+		queryBoundingBox(center, meters, out);
+
+		// Drop the ids in the corners of the box, compacting in place
+		int kept = start;
+		for(int i=start; i<out.size(); i++){
+			long id = out.get(i);
+			LatLng p = mPositions.get(id);
+			if(GeoUtils.distanceBetween(center.latitude, center.longitude, p.latitude, p.longitude)<=meters){
+				out.set(kept++, id);
+			}
+		}
+		out.truncate(kept);
+	}
+
+	/**
+	 * Collects ids inside the box enclosing the circle of given radius, in meters.
+	 */
+	void queryBoundingBox(LatLng center, double meters, LongList out){
+		double latSpan = GeoUtils.latitudeSpan(meters);
+		double south = center.latitude - latSpan;
+		double north = center.latitude + latSpan;
+		if(south<=-90 || north>=90){
+			// Circle covers a pole
+			mRoot.query(Math.max(south, -90), -180, Math.min(north, 90), 180, out);
+			return;
+		}
+		double lngSpan = GeoUtils.longitudeSpan(center.latitude, meters);
+		if(lngSpan>=180){
+			mRoot.query(south, -180, north, 180, out);
+			return;
+		}
+		double west = center.longitude - lngSpan;
+		double east = center.longitude + lngSpan;
+		if(west<-180){
+			mRoot.query(south, west + 360, north, 180, out);
+			mRoot.query(south, -180, north, east, out);
+		}else if(east>180){
+			mRoot.query(south, west, north, 180, out);
+			mRoot.query(south, -180, north, east - 360, out);
+		}else{
+			mRoot.query(south, west, north, east, out);
+		}
+	}
+
+	/**
+	 * Collects the ids closest to center, nearest first.<p>
+	 * Nodes and points are visited best-first by their distance from center,
+	 * using a lower bound of the distance for nodes, so that the search stops
+	 * as soon as enough ids are found without looking at farther nodes.
+	 * @param count Maximum number of ids to collect
+	 * @param maxMeters Maximum distance of the ids, in meters.
+	 */
+	void nearest(LatLng center, int count, double maxMeters, LongList out){
+		if(count<=0 || mRoot.subtreeSize==0){
+			return;
+		}
+		double lat = center.latitude;
+		double lng = center.longitude;
+		DistanceHeap heap = new DistanceHeap();
+		heap.push(mRoot.minDistance(lat, lng), mRoot, 0);
+		int found = 0;
+		while(found<count && !heap.isEmpty()){
+			if(heap.peekDistance()>maxMeters){
+				break;
+			}
+			Node node = heap.peekNode();
+			long id = heap.peekId();
+			heap.pop();
+			if(node==null){
+				out.add(id);
+				found++;
+			}else if(node.children!=null){
+				for(Node child : node.children){
+					if(child.subtreeSize>0){
+						heap.push(child.minDistance(lat, lng), child, 0);
+					}
+				}
+			}else{
+				for(int i=0; i<node.count; i++){
+					heap.push(GeoUtils.distanceBetween(lat, lng, node.lats[i], node.lngs[i]), null, node.ids[i]);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Immutable copy of the ids and positions in the tree.
+	 */
+	static class Snapshot {
+		final long[] ids;
+		final LatLng[] positions;
+
+		Snapshot(long[] ids, LatLng[] positions){
+			this.ids = ids;
+			this.positions = positions;
+		}
+	}
+
+	private static class Node {
+		final double minLat;
+		final double minLng;
+		final double maxLat;
+		final double maxLng;
+		final int depth;
+
+		long[] ids;
+		double[] lats;
+		double[] lngs;
+		int count;
+		int subtreeSize;
+		Node[] children;
+
+		Node(double minLat, double minLng, double maxLat, double maxLng, int depth){
+			this.minLat = minLat;
+			this.minLng = minLng;
+			this.maxLat = maxLat;
+			this.maxLng = maxLng;
+			this.depth = depth;
+			ids = new long[NODE_CAPACITY];
+			lats = new double[NODE_CAPACITY];
+			lngs = new double[NODE_CAPACITY];
+		}
+
+		void insert(long id, double lat, double lng){
+			subtreeSize++;
+			if(children!=null){
+				childFor(lat, lng).insert(id, lat, lng);
+				return;
+			}
+			if(count==ids.length){
+				if(depth<MAX_DEPTH){
+					split();
+					childFor(lat, lng).insert(id, lat, lng);
+					return;
+				}
+				// Too many points at the same spot, just grow the bucket
+				ids = Arrays.copyOf(ids, count * 2);
+				lats = Arrays.copyOf(lats, count * 2);
+				lngs = Arrays.copyOf(lngs, count * 2);
+			}
+			ids[count] = id;
+			lats[count] = lat;
+			lngs[count] = lng;
+			count++;
+		}
+
+		boolean remove(long id, double lat, double lng){
+			boolean removed = false;
+			if(children!=null){
+				removed = childFor(lat, lng).remove(id, lat, lng);
+				if(removed){
+					subtreeSize--;
+					if(subtreeSize<=NODE_CAPACITY / 2){
+						merge();
+					}
+				}
+				return removed;
+			}
+			for(int i=0; i<count; i++){
+				if(ids[i]==id){
+					count--;
+					ids[i] = ids[count];
+					lats[i] = lats[count];
+					lngs[i] = lngs[count];
+					subtreeSize--;
+					return true;
+				}
+			}
+			return false;
+		}
+
+		void query(double south, double west, double north, double east, LongList out){
+			if(subtreeSize==0 || south>maxLat || north<minLat || west>maxLng || east<minLng){
+				return;
+			}
+			if(children!=null){
+				for(Node child : children){
+					child.query(south, west, north, east, out);
+				}
+				return;
+			}
+			boolean inside = south<=minLat && north>=maxLat && west<=minLng && east>=maxLng;
+			for(int i=0; i<count; i++){
+				if(inside || (lats[i]>=south && lats[i]<=north && lngs[i]>=west && lngs[i]<=east)){
+					out.add(ids[i]);
+				}
+			}
+		}
+
+		/**
+		 * Returns a lower bound of the distance from given point to any point of this node, in meters.
+		 */
+		double minDistance(double lat, double lng){
+			// No point is closer than the latitude difference
+			double nearestLat = Math.max(minLat, Math.min(maxLat, lat));
+			double distance = GeoUtils.EARTH_RADIUS * Math.toRadians(Math.abs(lat - nearestLat));
+
+			if(lng<minLng || lng>maxLng){
+				if(maxLng - minLng<180){
+					// Paths to the node cross the great circle of an edge meridian
+					double toEdges = Math.min(distanceToMeridian(lat, lng, minLng), distanceToMeridian(lat, lng, maxLng));
+					distance = Math.max(distance, toEdges);
+				}
+			}
+			return distance;
+		}
+
+		private static double distanceToMeridian(double lat, double lng, double meridian){
+			double sinDistance = Math.cos(Math.toRadians(lat)) * Math.abs(Math.sin(Math.toRadians(lng - meridian)));
+			return GeoUtils.EARTH_RADIUS * Math.asin(Math.min(1, sinDistance));
+		}
+
+		private Node childFor(double lat, double lng){
+			double midLat = (minLat + maxLat) / 2;
+			double midLng = (minLng + maxLng) / 2;
+			int index = (lat>=midLat ? 2 : 0) + (lng>=midLng ? 1 : 0);
+			return children[index];
+		}
+
+		private void split(){
+			double midLat = (minLat + maxLat) / 2;
+			double midLng = (minLng + maxLng) / 2;
+			children = new Node[]{
+					new Node(minLat, minLng, midLat, midLng, depth + 1),
+					new Node(minLat, midLng, midLat, maxLng, depth + 1),
+					new Node(midLat, minLng, maxLat, midLng, depth + 1),
+					new Node(midLat, midLng, maxLat, maxLng, depth + 1)};
+			for(int i=0; i<count; i++){
+				childFor(lats[i], lngs[i]).insert(ids[i], lats[i], lngs[i]);
+			}
+			count = 0;
+			ids = null;
+			lats = null;
+			lngs = null;
+		}
+
+		private void merge(){
+			ids = new long[NODE_CAPACITY];
+			lats = new double[NODE_CAPACITY];
+			lngs = new double[NODE_CAPACITY];
+			count = 0;
+			Node[] old = children;
+			children = null;
+			for(Node child : old){
+				child.collectInto(this);
+			}
+		}
+
+		private void collectInto(Node target){
+			if(children!=null){
+				for(Node child : children){
+					child.collectInto(target);
+				}
+				return;
+			}
+			for(int i=0; i<count; i++){
+				target.ids[target.count] = ids[i];
+				target.lats[target.count] = lats[i];
+				target.lngs[target.count] = lngs[i];
+				target.count++;
+			}
+		}
+	}
+
+	/**
+	 * Binary min-heap of nodes and points keyed by distance, kept in parallel arrays.
+	 * Points are stored with a null node.
+	 */
+	private static class DistanceHeap {
+		private double[] mDistances = new double[64];
+		private Node[] mNodes = new Node[64];
+		private long[] mIds = new long[64];
+		private int mSize;
+
+		boolean isEmpty(){
+			return mSize==0;
+		}
+
+		double peekDistance(){
+			return mDistances[0];
+		}
+
+		Node peekNode(){
+			return mNodes[0];
+		}
+
+		long peekId(){
+			return mIds[0];
+		}
+
+		void push(double distance, Node node, long id){
+			if(mSize==mDistances.length){
+				mDistances = Arrays.copyOf(mDistances, mSize * 2);
+				mNodes = Arrays.copyOf(mNodes, mSize * 2);
+				mIds = Arrays.copyOf(mIds, mSize * 2);
+			}
+			int i = mSize++;
+			while(i>0){
+				int parent = (i - 1) / 2;
+				if(mDistances[parent]<=distance){
+					break;
+				}
+				set(i, mDistances[parent], mNodes[parent], mIds[parent]);
+				i = parent;
+			}
+			set(i, distance, node, id);
+		}
+
+		void pop(){
+			int last = --mSize;
+			double distance = mDistances[last];
+			Node node = mNodes[last];
+			long id = mIds[last];
+			mNodes[last] = null;
+			if(last==0){
+				return;
+			}
+			int i = 0;
+			while(true){
+				int child = i * 2 + 1;
+				if(child>=mSize){
+					break;
+				}
+				if(child + 1<mSize && mDistances[child + 1]<mDistances[child]){
+					child++;
+				}
+				if(distance<=mDistances[child]){
+					break;
+				}
+				set(i, mDistances[child], mNodes[child], mIds[child]);
+				i = child;
+			}
+			set(i, distance, node, id);
+		}
+
+		private void set(int i, double distance, Node node, long id){
+			mDistances[i] = distance;
+			mNodes[i] = node;
+			mIds[i] = id;
+		}
+	}
+
+}
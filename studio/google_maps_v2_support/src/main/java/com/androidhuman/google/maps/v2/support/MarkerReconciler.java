@@ -0,0 +1,358 @@
+/*
+ * Copyright 2013 Taeho Kim (jyte82@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.androidhuman.google.maps.v2.support;
+
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+import com.androidhuman.google.maps.v2.support.model.SupportMarker;
+import com.google.android.gms.maps.model.MarkerOptions;
+
+/**
+ * Brings the markers of a {@link MarkerManager} in line with a complete set of desired markers.<p>
+ * Desired and current markers are compared on a background thread, and only the markers
+ * that differ are added, updated or removed on the main thread, spread over frames so that
+ * no frame spends more than the frame budget on them. Markers changed while comparing or applying
+ * are handled against their latest state, and a submission made stale by a newer one is dropped.<p>
+ * Counters accumulate over every submission, so that the work saved compared to
+ * clearing and re-adding every marker can be measured.
+ * @author Taeho Kim
+ *
+ */
+public class MarkerReconciler implements FrameTicker.Callback {
+	private static final int CANCELLATION_CHECK_INTERVAL = 1024;
+
+	private MarkerManager mMarkerManager;
+	private Handler mHandler;
+	private ExecutorService mExecutor;
+
+	private int mGeneration;
+	private Future<?> mPendingTask;
+	private FrameTicker mTicker;
+	private Diff mApplyingDiff;
+
+	private int mSubmitCount;
+	private int mAddCount;
+	private int mUpdateCount;
+	private int mRemoveCount;
+	private int mUnchangedCount;
+	private int mAvoidedOpCount;
+
+	MarkerReconciler(MarkerManager manager){
+		mMarkerManager = manager;
+		mHandler = new Handler(Looper.getMainLooper());
+		mExecutor = BackgroundExecutors.newSingleThreadExecutor("MarkerReconciler");
+		mTicker = FrameTicker.create(this);
+	}
+
+	/**
+	 * Starts comparing given markers with the current ones, replacing any comparison in progress.
+	 */
+	void submit(Map<Long, MarkerOptions> desired){
+		cancel();
+		final int generation = ++mGeneration;
+
+		// Copy both sides here, as neither can be read safely from another thread
+		final long[] desiredIds = new long[desired.size()];
+		final MarkerOptions[] desiredOptions = new MarkerOptions[desiredIds.length];
+		int i = 0;
+		for(Entry<Long, MarkerOptions> entry : desired.entrySet()){
+			desiredIds[i] = entry.getKey();
+			desiredOptions[i] = entry.getValue();
+			i++;
+		}
+		LongObjectRegistry<SupportMarker> records = mMarkerManager.getRecords();
+		final long[] currentIds = new long[records.size()];
+		final MarkerOptions[] currentOptions = new MarkerOptions[currentIds.length];
+		i = 0;
+		for(int slot=records.firstSlot(); slot>=0; slot=records.nextSlot(slot)){
+			currentIds[i] = records.keyAt(slot);
+			currentOptions[i] = records.valueAt(slot).getOptions();
+			i++;
+		}
+
+		mPendingTask = mExecutor.submit(new Runnable() {
+			@Override
+			public void run() {
+				final Diff diff = computeDiff(currentIds, currentOptions, desiredIds, desiredOptions);
+				if(diff==null){
+					return;
+				}
+				mHandler.post(new Runnable() {
+					@Override
+					public void run() {
+						if(generation==mGeneration && mPendingTask!=null){
+							mPendingTask = null;
+							applyDiff(diff);
+						}
+					}
+				});
+			}
+		});
+	}
+
+	/**
+	 * Drops the comparison in progress and the operations not applied yet, if any.
+	 */
+	void cancel(){
+		mGeneration++;
+		if(mPendingTask!=null){
+			mPendingTask.cancel(true);
+			mPendingTask = null;
+		}
+		mApplyingDiff = null;
+		mTicker.cancel();
+	}
+
+	/**
+	 * Drops the comparison in progress and stops the background thread.
+	 */
+	void destroy(){
+		cancel();
+		mExecutor.shutdownNow();
+	}
+
+	/**
+	 * Returns whether a submission is being compared in background.
+	 * @return true if a comparison is in progress.
+	 */
+	public boolean isComputing(){
+		return mPendingTask!=null;
+	}
+
+	/**
+	 * Returns whether the operations of a submission are being applied over frames.
+	 * @return true if some operations are not applied yet.
+	 */
+	public boolean isApplying(){
+		return mApplyingDiff!=null;
+	}
+
+	public int getSubmitCount(){
+		return mSubmitCount;
+	}
+
+	/**
+	 * Returns the number of markers added by submissions.
+	 * @return The number of added markers
+	 */
+	public int getAddCount(){
+		return mAddCount;
+	}
+
+	/**
+	 * Returns the number of markers updated in place by submissions.
+	 * @return The number of updated markers
+	 */
+	public int getUpdateCount(){
+		return mUpdateCount;
+	}
+
+	/**
+	 * Returns the number of markers removed by submissions.
+	 * @return The number of removed markers
+	 */
+	public int getRemoveCount(){
+		return mRemoveCount;
+	}
+
+	/**
+	 * Returns the number of submitted markers that were left untouched, as they did not change.
+	 * @return The number of unchanged markers
+	 */
+	public int getUnchangedCount(){
+		return mUnchangedCount;
+	}
+
+	/**
+	 * Returns the number of operations saved compared to removing every current marker
+	 * and adding every submitted one.
+	 * @return The number of avoided operations
+	 */
+	public int getAvoidedOpCount(){
+		return mAvoidedOpCount;
+	}
+
+	public void resetCounters(){
+		mSubmitCount = 0;
+		mAddCount = 0;
+		mUpdateCount = 0;
+		mRemoveCount = 0;
+		mUnchangedCount = 0;
+		mAvoidedOpCount = 0;
+	}
+
+	/**
+	 * Compares current and desired markers.
+	 * @return The difference, or null if interrupted.
+	 */
+	private static Diff computeDiff(long[] currentIds, MarkerOptions[] currentOptions,
+			long[] desiredIds, MarkerOptions[] desiredOptions){
+		LongObjectRegistry<MarkerOptions> current = new LongObjectRegistry<MarkerOptions>(currentIds.length);
+		for(int i=0; i<currentIds.length; i++){
+			current.put(currentIds[i], currentOptions[i]);
+		}
+
+		Diff diff = new Diff(currentIds.length, desiredIds.length);
+		LongObjectRegistry<MarkerOptions> desired = new LongObjectRegistry<MarkerOptions>(desiredIds.length);
+		for(int i=0; i<desiredIds.length; i++){
+			if(i % CANCELLATION_CHECK_INTERVAL==0 && Thread.currentThread().isInterrupted()){
+				return null;
+			}
+			long id = desiredIds[i];
+			MarkerOptions options = desiredOptions[i];
+			desired.put(id, options);
+			MarkerOptions old = current.get(id);
+			if(old==null){
+				diff.addIds.add(id);
+				diff.addOptions[diff.addIds.size() - 1] = options;
+			}else if(!MarkerOptionsUtils.isSame(old, options)){
+				diff.updateIds.add(id);
+				diff.updateOptions[diff.updateIds.size() - 1] = options;
+			}else{
+				diff.unchangedIds.add(id);
+				diff.unchangedOptions[diff.unchangedIds.size() - 1] = options;
+			}
+		}
+		for(int i=0; i<currentIds.length; i++){
+			if(i % CANCELLATION_CHECK_INTERVAL==0 && Thread.currentThread().isInterrupted()){
+				return null;
+			}
+			if(!desired.containsKey(currentIds[i])){
+				diff.removeIds.add(currentIds[i]);
+			}
+		}
+		return diff;
+	}
+
+	private void applyDiff(Diff diff){
+		mApplyingDiff = diff;
+		applyChunk();
+	}
+
+	@Override
+	public void onFrame(long frameTimeMillis) {
+		if(mApplyingDiff!=null){
+			applyChunk();
+		}
+	}
+
+	private void applyChunk(){
+		Diff diff = mApplyingDiff;
+		long deadline = SystemClock.uptimeMillis() + mMarkerManager.getFrameBudget();
+		while(diff.cursor<diff.getOpCount()){
+			applyOp(diff, diff.cursor++);
+			if(SystemClock.uptimeMillis()>=deadline){
+				break;
+			}
+		}
+		if(diff.cursor<diff.getOpCount()){
+			mTicker.requestFrame();
+			return;
+		}
+
+		mApplyingDiff = null;
+		mSubmitCount++;
+		mAvoidedOpCount += diff.currentCount + diff.desiredCount - diff.performedCount;
+	}
+
+	/**
+	 * Applies an operation against the latest state of its marker, which may have changed
+	 * since comparing. Removals come first, then updates, additions, and checks of unchanged markers.
+	 */
+	private void applyOp(Diff diff, int index){
+		LongObjectRegistry<SupportMarker> records = mMarkerManager.getRecords();
+		if(index<diff.removeIds.size()){
+			long id = diff.removeIds.get(index);
+			if(records.containsKey(id)){
+				mMarkerManager.removeById(id);
+				mRemoveCount++;
+				diff.performedCount++;
+			}
+			return;
+		}
+		index -= diff.removeIds.size();
+		if(index<diff.updateIds.size()){
+			putMarker(diff, diff.updateIds.get(index), diff.updateOptions[index]);
+			diff.updateOptions[index] = null;
+			return;
+		}
+		index -= diff.updateIds.size();
+		if(index<diff.addIds.size()){
+			putMarker(diff, diff.addIds.get(index), diff.addOptions[index]);
+			diff.addOptions[index] = null;
+			return;
+		}
+		index -= diff.addIds.size();
+		long id = diff.unchangedIds.get(index);
+		if(records.containsKey(id)){
+			mUnchangedCount++;
+		}else{
+			// Removed while comparing, but still desired
+			mMarkerManager.addMarkerWithRef(id, diff.unchangedOptions[index]);
+			mAddCount++;
+			diff.performedCount++;
+		}
+		diff.unchangedOptions[index] = null;
+	}
+
+	/**
+	 * Adds or updates a marker depending on whether it exists at the moment.
+	 */
+	private void putMarker(Diff diff, long id, MarkerOptions options){
+		if(mMarkerManager.getRecords().containsKey(id)){
+			mMarkerManager.updateById(id, options);
+			mUpdateCount++;
+		}else{
+			mMarkerManager.addMarkerWithRef(id, options);
+			mAddCount++;
+		}
+		diff.performedCount++;
+	}
+
+	private static class Diff {
+		final int currentCount;
+		final int desiredCount;
+		final LongList addIds = new LongList();
+		final MarkerOptions[] addOptions;
+		final LongList updateIds = new LongList();
+		final MarkerOptions[] updateOptions;
+		final LongList removeIds = new LongList();
+		final LongList unchangedIds = new LongList();
+		final MarkerOptions[] unchangedOptions;
+		int cursor;
+		int performedCount;
+
+		Diff(int currentCount, int desiredCount){
+			this.currentCount = currentCount;
+			this.desiredCount = desiredCount;
+			addOptions = new MarkerOptions[desiredCount];
+			updateOptions = new MarkerOptions[desiredCount];
+			unchangedOptions = new MarkerOptions[desiredCount];
+		}
+
+		int getOpCount(){
+			return removeIds.size() + updateIds.size() + addIds.size() + unchangedIds.size();
+		}
+	}
+}
@@ -0,0 +1,440 @@
+/*
+ * Copyright 2013 Taeho Kim (jyte82@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.androidhuman.google.maps.v2.support;
+
+import java.util.Arrays;
+import java.util.HashMap;
+
+import com.google.android.gms.maps.model.LatLng;
+import com.google.android.gms.maps.model.LatLngBounds;
+import com.google.android.gms.maps.model.MarkerOptions;
+
+/**
+ * Compact store of logical markers: an id, a position and a title for each marker.<p>
+ * Markers are kept in packed columns, ids in a long[], latitudes and longitudes in double[]s
+ * and titles as indices into a pool of distinct titles, so a marker takes about 40 bytes
+ * instead of the few hundred bytes of a {@link com.androidhuman.google.maps.v2.support.model.SupportMarker}
+ * and its {@link MarkerOptions}. Queries scan the columns linearly without allocating.<p>
+ * Attached to a {@link MarkerManager} with {@link MarkerManager#setMarkerStore(MarkerStore)},
+ * only the stored markers around the camera are turned into managed markers.
+ * This class is not thread-safe and should be used from the main thread.
+ * @author Taeho Kim
+ *
+ */
+public class MarkerStore {
+	private static final int MIN_CAPACITY = 16;
+	private static final int NO_TITLE = -1;
+
+	private long[] mIds;
+	private double[] mLatitudes;
+	private double[] mLongitudes;
+	private int[] mTitles;
+	private int mSize;
+
+	// Open-addressed table of row + 1 for each id, 0 for empty slots
+	private int[] mTable;
+	private int mMask;
+
+	private StringPool mTitlePool = new StringPool();
+	private MarkerOptions mTemplate = new MarkerOptions();
+	private long mMaxId = -1;
+
+	public MarkerStore(){
+		this(MIN_CAPACITY);
+	}
+
+	/**
+	 * Creates a store sized for given number of markers.
+	 * @param expectedSize Expected number of markers
+	 */
+	public MarkerStore(int expectedSize){
+		if(expectedSize<0){
+			throw new IllegalArgumentException("Expected size should not be negative.");
+		}
+		int capacity = Math.max(expectedSize, MIN_CAPACITY);
+		mIds = new long[capacity];
+		mLatitudes = new double[capacity];
+		mLongitudes = new double[capacity];
+		mTitles = new int[capacity];
+		allocateTable(tableCapacityFor(capacity));
+	}
+
+	/**
+	 * Puts a marker, replacing the marker of the same id if any.
+	 * @param id Id of the marker
+	 * @param latitude Latitude of the marker
+	 * @param longitude Longitude of the marker
+	 * @param title Title of the marker, or null.
+	 */
+	public void put(long id, double latitude, double longitude, String title){
+		int row = findRow(id);
+		if(row>=0){
+			mTitlePool.release(mTitles[row]);
+		}else{
+			row = mSize++;
+			ensureCapacity(mSize);
+			mIds[row] = id;
+			insertRow(row);
+			if(id>mMaxId){
+				mMaxId = id;
+			}
+		}
+		mLatitudes[row] = latitude;
+		mLongitudes[row] = longitude;
+		mTitles[row] = mTitlePool.acquire(title);
+	}
+
+	public void put(long id, LatLng position, String title){
+		put(id, position.latitude, position.longitude, title);
+	}
+
+	/**
+	 * Removes a marker.
+	 * @param id Id of the marker
+	 * @return true if the marker was in this store.
+	 */
+	public boolean remove(long id){
+		int slot = findSlot(id);
+		if(slot<0){
+			return false;
+		}
+		int row = mTable[slot] - 1;
+		removeSlot(slot);
+		mTitlePool.release(mTitles[row]);
+
+		// Move the last row into the hole to keep the columns packed
+		int last = --mSize;
+		if(row!=last){
+			mIds[row] = mIds[last];
+			mLatitudes[row] = mLatitudes[last];
+			mLongitudes[row] = mLongitudes[last];
+			mTitles[row] = mTitles[last];
+			mTable[findSlot(mIds[row])] = row + 1;
+		}
+		return true;
+	}
+
+	public boolean contains(long id){
+		return findSlot(id)>=0;
+	}
+
+	/**
+	 * Returns the position of a marker.
+	 * @param id Id of the marker
+	 * @return Position of the marker, or null if the marker is not in this store.
+	 */
+	public LatLng getPosition(long id){
+		int row = findRow(id);
+		return row>=0 ? new LatLng(mLatitudes[row], mLongitudes[row]) : null;
+	}
+
+	/**
+	 * Returns the title of a marker.
+	 * @param id Id of the marker
+	 * @return Title of the marker, or null if the marker has none or is not in this store.
+	 */
+	public String getTitle(long id){
+		int row = findRow(id);
+		return row>=0 ? mTitlePool.get(mTitles[row]) : null;
+	}
+
+	public int size(){
+		return mSize;
+	}
+
+	/**
+	 * Returns the number of distinct titles kept in the title pool.
+	 * @return The number of distinct titles
+	 */
+	public int getTitleCount(){
+		return mTitlePool.size();
+	}
+
+	/**
+	 * Removes every marker. Allocated columns are kept for reuse.
+	 */
+	public void clear(){
+		mSize = 0;
+		Arrays.fill(mTable, 0);
+		mTitlePool.clear();
+	}
+
+	/**
+	 * Finds markers inside given bounds.
+	 * @param bounds Bounds to search. Bounds crossing the 180th meridian are supported.
+	 * @return Ids of the markers inside the bounds, in no particular order.
+	 */
+	public long[] getIdsIn(LatLngBounds bounds){
+		LongList ids = new LongList();
+		query(bounds, ids);
+		return ids.toArray();
+	}
+
+	/**
+	 * Finds markers within given distance from a position.
+	 * @param center Center of the search
+	 * @param meters Search radius in meters
+	 * @return Ids of the markers within the radius, in no particular order.
+	 */
+	public long[] getIdsAround(LatLng center, double meters){
+		if(meters<0){
+			throw new IllegalArgumentException("Radius should not be negative.");
+		}
+		// Cheap box test first, then the exact distance
+		double latSpan = GeoUtils.latitudeSpan(meters);
+		double lngSpan = GeoUtils.longitudeSpan(center.latitude, meters);
+		LongList ids = new LongList();
+		for(int row=0; row<mSize; row++){
+			double lat = mLatitudes[row];
+			if(Math.abs(lat - center.latitude)>latSpan){
+				continue;
+			}
+			double dLng = Math.abs(mLongitudes[row] - center.longitude);
+			if(Math.min(dLng, 360 - dLng)>lngSpan){
+				continue;
+			}
+			if(GeoUtils.distanceBetween(center.latitude, center.longitude, lat, mLongitudes[row])<=meters){
+				ids.add(mIds[row]);
+			}
+		}
+		return ids.toArray();
+	}
+
+	/**
+	 * Returns an estimate of the heap used by this store, in bytes.
+	 * @return Estimated memory usage in bytes
+	 */
+	public long getMemoryEstimate(){
+		long bytes = (long)mIds.length * (8 + 8 + 8 + 4) + (long)mTable.length * 4;
+		return bytes + mTitlePool.getMemoryEstimate();
+	}
+
+	/**
+	 * Sets the options stored markers are turned into managed markers with,
+	 * e.g. to give them an icon. Position and title are taken from the store.
+	 * @param template Template options
+	 */
+	public void setTemplate(MarkerOptions template){
+		if(template==null){
+			throw new IllegalArgumentException("Template should not be null.");
+		}
+		mTemplate = template;
+	}
+
+	public MarkerOptions getTemplate(){
+		return mTemplate;
+	}
+
+	/**
+	 * Collects the ids of markers inside given bounds.
+	 */
+	void query(LatLngBounds bounds, LongList out){
+		double south = bounds.southwest.latitude;
+		double north = bounds.northeast.latitude;
+		double west = bounds.southwest.longitude;
+		double east = bounds.northeast.longitude;
+		boolean isCrossing = west>east;
+		for(int row=0; row<mSize; row++){
+			double lat = mLatitudes[row];
+			if(lat<south || lat>north){
+				continue;
+			}
+			double lng = mLongitudes[row];
+			if(isCrossing ? (lng>=west || lng<=east) : (lng>=west && lng<=east)){
+				out.add(mIds[row]);
+			}
+		}
+	}
+
+	/**
+	 * Returns the options a stored marker is turned into a managed marker with.
+	 * @return New options, or null if the marker is not in this store.
+	 */
+	MarkerOptions toOptions(long id){
+		int row = findRow(id);
+		if(row<0){
+			return null;
+		}
+		return MarkerOptionsUtils.copy(mTemplate)
+				.position(new LatLng(mLatitudes[row], mLongitudes[row]))
+				.title(mTitlePool.get(mTitles[row]));
+	}
+
+	/**
+	 * Returns the largest id ever put in this store, or -1.
+	 */
+	long getMaxId(){
+		return mMaxId;
+	}
+
+	private int findRow(long id){
+		int slot = findSlot(id);
+		return slot>=0 ? mTable[slot] - 1 : -1;
+	}
+
+	private int findSlot(long id){
+		int slot = indexFor(id);
+		while(mTable[slot]!=0){
+			if(mIds[mTable[slot] - 1]==id){
+				return slot;
+			}
+			slot = (slot + 1) & mMask;
+		}
+		return -1;
+	}
+
+	private void insertRow(int row){
+		if((row + 1) * 2>mTable.length){
+			allocateTable(mTable.length * 2);
+			for(int i=0; i<row; i++){
+				insertSlot(i);
+			}
+		}
+		insertSlot(row);
+	}
+
+	private void insertSlot(int row){
+		int slot = indexFor(mIds[row]);
+		while(mTable[slot]!=0){
+			slot = (slot + 1) & mMask;
+		}
+		mTable[slot] = row + 1;
+	}
+
+	private void removeSlot(int slot){
+		mTable[slot] = 0;
+
+		// Shift back the following entries of the probe sequence, so that lookups never stop early
+		int hole = slot;
+		int next = slot;
+		while(true){
+			next = (next + 1) & mMask;
+			if(mTable[next]==0){
+				break;
+			}
+			int home = indexFor(mIds[mTable[next] - 1]);
+			boolean isBetween = hole<=next ? (hole<home && home<=next) : (hole<home || home<=next);
+			if(!isBetween){
+				mTable[hole] = mTable[next];
+				mTable[next] = 0;
+				hole = next;
+			}
+		}
+	}
+
+	private int indexFor(long id){
+		long hash = id * 0x9E3779B97F4A7C15L;
+		return (int)(hash ^ (hash>>>32)) & mMask;
+	}
+
+	private void ensureCapacity(int size){
+		if(size<=mIds.length){
+			return;
+		}
+		int capacity = Math.max(size, mIds.length + (mIds.length>>1));
+		mIds = Arrays.copyOf(mIds, capacity);
+		mLatitudes = Arrays.copyOf(mLatitudes, capacity);
+		mLongitudes = Arrays.copyOf(mLongitudes, capacity);
+		mTitles = Arrays.copyOf(mTitles, capacity);
+	}
+
+	private void allocateTable(int capacity){
+		mTable = new int[capacity];
+		mMask = capacity - 1;
+	}
+
+	private static int tableCapacityFor(int size){
+		int capacity = MIN_CAPACITY;
+		while(capacity<size * 2){
+			capacity <<= 1;
+		}
+		return capacity;
+	}
+
+	/**
+	 * Pool of distinct strings, each kept once and counted by the rows referring to it.
+	 */
+	private static class StringPool {
+		private HashMap<String, Integer> mIndices = new HashMap<String, Integer>();
+		private String[] mStrings = new String[MIN_CAPACITY];
+		private int[] mRefCounts = new int[MIN_CAPACITY];
+		private int[] mFreeIndices = new int[MIN_CAPACITY];
+		private int mFreeCount;
+		private int mEnd;
+		private long mCharCount;
+
+		int acquire(String s){
+			if(s==null){
+				return NO_TITLE;
+			}
+			Integer index = mIndices.get(s);
+			if(index!=null){
+				mRefCounts[index]++;
+				return index;
+			}
+			int i;
+			if(mFreeCount>0){
+				i = mFreeIndices[--mFreeCount];
+			}else{
+				i = mEnd++;
+				if(i==mStrings.length){
+					mStrings = Arrays.copyOf(mStrings, i * 2);
+					mRefCounts = Arrays.copyOf(mRefCounts, i * 2);
+				}
+			}
+			mStrings[i] = s;
+			mRefCounts[i] = 1;
+			mIndices.put(s, i);
+			mCharCount += s.length();
+			return i;
+		}
+
+		void release(int index){
+			if(index==NO_TITLE || --mRefCounts[index]>0){
+				return;
+			}
+			mIndices.remove(mStrings[index]);
+			mCharCount -= mStrings[index].length();
+			mStrings[index] = null;
+			if(mFreeCount==mFreeIndices.length){
+				mFreeIndices = Arrays.copyOf(mFreeIndices, mFreeCount * 2);
+			}
+			mFreeIndices[mFreeCount++] = index;
+		}
+
+		String get(int index){
+			return index!=NO_TITLE ? mStrings[index] : null;
+		}
+
+		int size(){
+			return mIndices.size();
+		}
+
+		void clear(){
+			mIndices.clear();
+			Arrays.fill(mStrings, null);
+			mFreeCount = 0;
+			mEnd = 0;
+			mCharCount = 0;
+		}
+
+		long getMemoryEstimate(){
+			// Arrays, plus for each string its object, characters and map entry
+			return (long)mStrings.length * (4 + 4 + 4) + mIndices.size() * 80L + mCharCount * 2;
+		}
+	}
+}
@@ -0,0 +1,240 @@
+/*
+ * Copyright 2013 Taeho Kim (jyte82@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.androidhuman.google.maps.v2.support;
+
+import java.util.Iterator;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+import com.androidhuman.google.maps.v2.support.SupportGoogleMap.SupportOnMarkerStreamListener;
+import com.google.android.gms.maps.model.MarkerOptions;
+
+/**
+ * Adds markers to a {@link MarkerManager} as a {@link Producer} produces them.<p>
+ * The producer runs on a background thread and hands markers over through a bounded queue,
+ * blocking while the queue is full, so that no more than the queue capacity is held in memory
+ * whatever the number of markers. Queued markers are added on the main thread,
+ * spending no more than the frame budget of the manager on each frame.
+ * Ids of the added markers are reported to the listener as they are added, not kept by the stream.<p>
+ * Call {@link #cancel()} when the markers are no longer needed, e.g. when the activity is destroyed.
+ * @author Taeho Kim
+ *
+ */
+public class MarkerStream {
+	public static final int DEFAULT_QUEUE_CAPACITY = 256;
+
+	private MarkerManager mMarkerManager;
+	private SupportOnMarkerStreamListener mListener;
+	private Handler mHandler;
+	private ArrayBlockingQueue<MarkerOptions> mQueue;
+	private Future<?> mProducerTask;
+
+	private AtomicBoolean mIsDrainScheduled = new AtomicBoolean();
+	private volatile boolean mIsCancelled;
+	private volatile boolean mIsProduced;
+	private volatile Exception mError;
+
+	private boolean mIsFinished;
+	private int mAddedCount;
+
+	private Runnable mDrainer = new Runnable() {
+		@Override
+		public void run() {
+			drain();
+		}
+	};
+
+	MarkerStream(MarkerManager manager, int queueCapacity, SupportOnMarkerStreamListener listener){
+		if(queueCapacity<=0){
+			throw new IllegalArgumentException("Queue capacity should be greater than 0.");
+		}
+		mMarkerManager = manager;
+		mListener = listener;
+		mHandler = new Handler(Looper.getMainLooper());
+		mQueue = new ArrayBlockingQueue<MarkerOptions>(queueCapacity);
+	}
+
+	void start(ExecutorService executor, final Producer producer){
+		mProducerTask = executor.submit(new Runnable() {
+			@Override
+			public void run() {
+				try{
+					producer.produce(new Sink() {
+						@Override
+						public boolean put(MarkerOptions options) throws InterruptedException {
+							if(mIsCancelled){
+								return false;
+							}
+							mQueue.put(options);
+							scheduleDrain();
+							return !mIsCancelled;
+						}
+					});
+				}catch(InterruptedException e){
+					// Cancelled
+				}catch(Exception e){
+					mError = e;
+				}finally{
+					mIsProduced = true;
+					scheduleDrain();
+				}
+			}
+		});
+	}
+
+	/**
+	 * Stops producing and adding markers. Markers added so far are kept.
+	 * The listener is not called anymore.
+	 */
+	public void cancel(){
+		if(mIsFinished){
+			return;
+		}
+		mIsCancelled = true;
+		if(mProducerTask!=null){
+			mProducerTask.cancel(true);
+		}
+		mQueue.clear();
+		mHandler.removeCallbacks(mDrainer);
+		finish();
+	}
+
+	public boolean isCancelled(){
+		return mIsCancelled;
+	}
+
+	/**
+	 * Returns whether every marker was added, or the stream was cancelled or failed.
+	 * @return true if the stream is over.
+	 */
+	public boolean isFinished(){
+		return mIsFinished;
+	}
+
+	/**
+	 * Returns the number of markers added so far.
+	 * @return The number of added markers
+	 */
+	public int getAddedCount(){
+		return mAddedCount;
+	}
+
+	/**
+	 * Returns the number of markers produced but not added yet.
+	 * @return The number of queued markers
+	 */
+	public int getQueuedCount(){
+		return mQueue.size();
+	}
+
+	private void scheduleDrain(){
+		if(mIsDrainScheduled.compareAndSet(false, true)){
+			mHandler.post(mDrainer);
+		}
+	}
+
+	private void drain(){
+		mIsDrainScheduled.set(false);
+		if(mIsFinished){
+			return;
+		}
+		// Read before draining: once set, every marker the producer put is already in the queue
+		boolean isProduced = mIsProduced;
+		long deadline = SystemClock.uptimeMillis() + mMarkerManager.getFrameBudget();
+		LongList ids = new LongList();
+		MarkerOptions options;
+		while((options = mQueue.poll())!=null){
+			ids.add(mMarkerManager.add(options).getId());
+			if(SystemClock.uptimeMillis()>=deadline){
+				break;
+			}
+		}
+		mAddedCount += ids.size();
+		if(ids.size()>0 && mListener!=null){
+			mListener.onProgress(ids.toArray(), mAddedCount);
+		}
+
+		if(!mQueue.isEmpty()){
+			scheduleDrain();
+		}else if(isProduced){
+			finish();
+			if(mListener!=null){
+				if(mError!=null){
+					mListener.onStreamFailed(mError, mAddedCount);
+				}else{
+					mListener.onStreamFinished(mAddedCount);
+				}
+			}
+		}
+	}
+
+	private void finish(){
+		mIsFinished = true;
+		mMarkerManager.onStreamFinished(this);
+	}
+
+	/**
+	 * Produces markers on a background thread.
+	 * @author Taeho Kim
+	 */
+	public interface Producer {
+
+		/**
+		 * Called on a background thread to produce every marker.
+		 * @param sink Sink to put the markers in, in order.
+		 * @throws Exception Reported through {@link SupportOnMarkerStreamListener#onStreamFailed(Exception, int)}.
+		 */
+		public void produce(Sink sink) throws Exception;
+	}
+
+	/**
+	 * Receives markers from a {@link Producer}.
+	 * @author Taeho Kim
+	 */
+	public interface Sink {
+
+		/**
+		 * Puts a marker to be added, waiting while the queue is full.
+		 * @param options A marker options object that defines how to render the marker.
+		 * @return false if the stream was cancelled, in which case the producer should stop.
+		 * @throws InterruptedException If the stream was cancelled while waiting.
+		 */
+		public boolean put(MarkerOptions options) throws InterruptedException;
+	}
+
+	/**
+	 * Adapts an iterator to a {@link Producer}.
+	 */
+	static Producer fromIterator(final Iterator<MarkerOptions> iterator){
+		return new Producer() {
+			@Override
+			public void produce(Sink sink) throws Exception {
+				while(iterator.hasNext()){
+					if(!sink.put(iterator.next())){
+						return;
+					}
+				}
+			}
+		};
+	}
+}
@@ -17,22 +17,35 @@
 package com.androidhuman.google.maps.v2.support;
 
 import java.util.ArrayList;
-import java.util.Collection;
-import java.util.HashMap;
-import java.util.LinkedHashMap;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
 
+import com.google.android.gms.maps.CameraUpdateFactory;
 import com.google.android.gms.maps.GoogleMap;
+import com.google.android.gms.maps.GoogleMap.OnCameraChangeListener;
+import com.google.android.gms.maps.model.CameraPosition;
 import com.google.android.gms.maps.model.LatLng;
 import com.google.android.gms.maps.model.Polyline;
 import com.google.android.gms.maps.model.PolylineOptions;
 
-public class PolylineManager {
+public class PolylineManager implements OnCameraChangeListener {
 	private GoogleMap mGoogleMap;
-	private HashMap<Long, Polyline> mPolylineMap;
+	private LongObjectRegistry<Polyline> mPolylineMap;
+	private LongObjectRegistry<ManagedPolyline> mManagedMap;
+	private int mSegmentSize = SegmentedPolyline.DEFAULT_SEGMENT_SIZE;
+	private float mSimplificationTolerance = SimplifiedPolyline.DEFAULT_TOLERANCE;
+	private float mClipMargin = ClippedPolyline.DEFAULT_MARGIN;
+	private ExecutorService mExecutor;
+	
+	private boolean mIsCoalescingAppends;
+	private FrameTicker mTicker;
+	private LongObjectRegistry<ArrayList<LatLng>> mPendingAppends;
+	private LatLng mPendingCameraTarget;
 	
 	public PolylineManager(){
-		mPolylineMap = new LinkedHashMap<Long, Polyline>();
+		mPolylineMap = new LongObjectRegistry<Polyline>();
+		mManagedMap = new LongObjectRegistry<ManagedPolyline>();
 	}
 	
 	public PolylineManager(GoogleMap map){
@@ -42,7 +55,7 @@ public class PolylineManager {
 	
 
 	public long add(PolylineOptions options){
-		long id = mPolylineMap.size();
+		long id = mPolylineMap.newId();
 		add(id, options);
 		return id;
 	}
@@ -64,22 +77,289 @@ public class PolylineManager {
 	}
 	
 	public void add(long id, PolylineOptions options){
+		removeIfExists(id);
 		Polyline marker = mGoogleMap.addPolyline(options);
 		mPolylineMap.put(id, marker);
 	}
 	
+	/**
+	 * Adds a polyline drawn as a chain of segments, for tracks that grow with {@link #append(long, LatLng)}.
+	 * Appending a point then only updates the last segment, so its cost doesn't grow with the track.
+	 * See {@link #setSegmentSize(int)}.
+	 * @param options A polyline options object that defines how to render the Polyline.
+	 * @return The id of the polyline that was added to map.
+	 */
+	public long addSegmented(PolylineOptions options){
+		long id = mPolylineMap.newId();
+		addSegmented(id, options);
+		return id;
+	}
+	
+	/**
+	 * Adds a polyline drawn as a chain of segments with given id.
+	 * See {@link #addSegmented(PolylineOptions)}.
+	 * @param id Polyline's id
+	 * @param options A polyline options object that defines how to render the Polyline.
+	 */
+	public void addSegmented(long id, PolylineOptions options){
+		removeIfExists(id);
+		mPolylineMap.reserveId(id);
+		mManagedMap.put(id, new SegmentedPolyline(mGoogleMap, options, mSegmentSize));
+	}
+	
+	/**
+	 * Sets the maximum number of points of each segment of polylines added afterwards
+	 * with {@link #addSegmented(PolylineOptions)}. Default value is {@value SegmentedPolyline#DEFAULT_SEGMENT_SIZE}.
+	 * @param size Points per segment
+	 */
+	public void setSegmentSize(int size){
+		if(size<2){
+			throw new IllegalArgumentException("Segment size should be at least 2.");
+		}
+		mSegmentSize = size;
+	}
+	
+	public int getSegmentSize(){
+		return mSegmentSize;
+	}
+	
+	/**
+	 * Adds a polyline that keeps every point, but is drawn with a version simplified for the current zoom level.
+	 * Points closer than the tolerance to the simplified line are left out, so long lines
+	 * seen from afar cost no more than their visible shape. Simplification runs on a background thread,
+	 * and the polyline shows up once it is done. See {@link #setSimplificationTolerance(float)}.
+	 * @param options A polyline options object that defines how to render the Polyline.
+	 * @return The id of the polyline that was added to map.
+	 */
+	public long addSimplified(PolylineOptions options){
+		long id = mPolylineMap.newId();
+		addSimplified(id, options);
+		return id;
+	}
+	
+	/**
+	 * Adds a polyline simplified for the current zoom level with given id.
+	 * See {@link #addSimplified(PolylineOptions)}.
+	 * @param id Polyline's id
+	 * @param options A polyline options object that defines how to render the Polyline.
+	 */
+	public void addSimplified(long id, PolylineOptions options){
+		if(mExecutor==null){
+			mExecutor = BackgroundExecutors.newSingleThreadExecutor("gmap_v2_support_polyline");
+		}
+		removeIfExists(id);
+		mPolylineMap.reserveId(id);
+		mManagedMap.put(id, new SimplifiedPolyline(mGoogleMap, options, mSimplificationTolerance, mExecutor));
+	}
+	
+	/**
+	 * Sets how far, in pixels, points may be from the simplified line drawn for polylines added afterwards
+	 * with {@link #addSimplified(PolylineOptions)}. Default value is {@value SimplifiedPolyline#DEFAULT_TOLERANCE}.
+	 * @param pixels Tolerance in pixels at zoom level 0 tile size (256)
+	 */
+	public void setSimplificationTolerance(float pixels){
+		if(pixels<=0){
+			throw new IllegalArgumentException("Tolerance should be greater than 0.");
+		}
+		mSimplificationTolerance = pixels;
+	}
+	
+	public float getSimplificationTolerance(){
+		return mSimplificationTolerance;
+	}
+	
+	/**
+	 * Adds a polyline that keeps every point, but is drawn only where it meets the camera bounds plus a margin.
+	 * Suits long lines seen up close: only the parts around the camera are sent to the map.
+	 * The drawn parts are computed again once the camera stops, if it moved out of them.
+	 * Drawn parts hold a bounded number of points, so that appending to the line only updates the last part,
+	 * like {@link #addSegmented(PolylineOptions)} does, as long as the line ends inside the drawn area.
+	 * See {@link #setClipMargin(float)}.
+	 * @param options A polyline options object that defines how to render the Polyline.
+	 * @return The id of the polyline that was added to map.
+	 */
+	public long addClipped(PolylineOptions options){
+		long id = mPolylineMap.newId();
+		addClipped(id, options);
+		return id;
+	}
+	
+	/**
+	 * Adds a polyline drawn only around the camera with given id.
+	 * See {@link #addClipped(PolylineOptions)}.
+	 * @param id Polyline's id
+	 * @param options A polyline options object that defines how to render the Polyline.
+	 */
+	public void addClipped(long id, PolylineOptions options){
+		removeIfExists(id);
+		mPolylineMap.reserveId(id);
+		mManagedMap.put(id, new ClippedPolyline(mGoogleMap, options, mClipMargin));
+	}
+	
+	/**
+	 * Sets how far outside the camera bounds polylines added afterwards with {@link #addClipped(PolylineOptions)}
+	 * are drawn. Default value is {@value ClippedPolyline#DEFAULT_MARGIN}.
+	 * @param margin Margin on each side, as a fraction of the visible width and height.
+	 */
+	public void setClipMargin(float margin){
+		if(margin<0){
+			throw new IllegalArgumentException("Margin should not be negative.");
+		}
+		mClipMargin = margin;
+	}
+	
+	public float getClipMargin(){
+		return mClipMargin;
+	}
+	
+	/**
+	 * Returns every point of a polyline, including the points left out when it is drawn.
+	 * @param id Polyline's id
+	 * @return Points of the polyline
+	 */
+	public List<LatLng> getPoints(long id){
+		if(mIsCoalescingAppends && mPendingAppends.containsKey(id)){
+			applyAppend(id, mPendingAppends.remove(id));
+		}
+		ManagedPolyline managed = mManagedMap.get(id);
+		if(managed!=null){
+			return managed.getPoints();
+		}
+		return getPolyline(id).getPoints();
+	}
+	
+	/**
+	 * Returns the polylines on map a polyline is currently drawn with, e.g. the segments of a polyline
+	 * added with {@link #addSegmented(PolylineOptions)}.
+	 * @param id Polyline's id
+	 * @return Polylines on map, in order.
+	 */
+	public List<Polyline> getSegments(long id){
+		ManagedPolyline managed = mManagedMap.get(id);
+		if(managed!=null){
+			return Collections.unmodifiableList(managed.getPolylines());
+		}
+		return Collections.singletonList(getPolyline(id));
+	}
+	
 	public void append(long id, LatLng point){
+		append(id, point, false);
+	}
+	
+	/**
+	 * Appends a point to a polyline.
+	 * @param id Polyline's id
+	 * @param point Point to append
+	 * @param shouldAnimateToLastPoint true to move the camera to the point.
+	 */
+	public void append(long id, LatLng point, boolean shouldAnimateToLastPoint){
+		appendAll(id, Collections.singletonList(point), shouldAnimateToLastPoint);
+	}
+	
+	/**
+	 * Appends points to a polyline, updating the map once for all of them.
+	 * @param id Polyline's id
+	 * @param points Points to append, in order.
+	 */
+	public void appendAll(long id, List<LatLng> points){
+		appendAll(id, points, false);
+	}
+	
+	/**
+	 * Appends points to a polyline, updating the map once for all of them.<p>
+	 * When appends are coalesced, the points are appended on the next frame along with every other point
+	 * appended to the polyline meanwhile, and the camera moves once per frame to the latest point requested.
+	 * See {@link #setAppendCoalescingEnabled(boolean)}.
+	 * @param id Polyline's id
+	 * @param points Points to append, in order.
+	 * @param shouldAnimateToLastPoint true to move the camera to the last point.
+	 */
+	public void appendAll(long id, List<LatLng> points, boolean shouldAnimateToLastPoint){
+		if(!mManagedMap.containsKey(id) && !mPolylineMap.containsKey(id)){
+			throw new IllegalArgumentException("Polyline with given id="+id+" does not exists.");
+		}
+		if(points.isEmpty()){
+			return;
+		}
+		LatLng lastPoint = points.get(points.size() - 1);
+		if(!mIsCoalescingAppends){
+			applyAppend(id, points);
+			if(shouldAnimateToLastPoint){
+				mGoogleMap.animateCamera(CameraUpdateFactory.newLatLng(lastPoint));
+			}
+			return;
+		}
+		ArrayList<LatLng> pending = mPendingAppends.get(id);
+		if(pending==null){
+			pending = new ArrayList<LatLng>(points.size());
+			mPendingAppends.put(id, pending);
+		}
+		pending.addAll(points);
+		if(shouldAnimateToLastPoint){
+			mPendingCameraTarget = lastPoint;
+		}
+		mTicker.requestFrame();
+	}
+	
+	/**
+	 * Enables or disables coalescing of appends.<p>
+	 * When enabled, points appended to a polyline within a frame are merged into a single update
+	 * of the polyline on the next frame, and at most one camera animation runs per frame.
+	 * Disabling it appends pending points right away.
+	 * @param enabled true to coalesce appends.
+	 */
+	public void setAppendCoalescingEnabled(boolean enabled){
+		if(mIsCoalescingAppends==enabled){
+			return;
+		}
+		if(enabled){
+			if(mTicker==null){
+				mPendingAppends = new LongObjectRegistry<ArrayList<LatLng>>();
+				mTicker = FrameTicker.create(new FrameTicker.Callback() {
+					@Override
+					public void onFrame(long frameTimeMillis) {
+						flushAppends();
+					}
+				});
+			}
+		}else{
+			mTicker.cancel();
+			flushAppends();
+		}
+		mIsCoalescingAppends = enabled;
+	}
+	
+	public boolean isAppendCoalescingEnabled(){
+		return mIsCoalescingAppends;
+	}
+	
+	private void flushAppends(){
+		long[] ids = mPendingAppends.keys();
+		for(long id : ids){
+			applyAppend(id, mPendingAppends.remove(id));
+		}
+		if(mPendingCameraTarget!=null){
+			mGoogleMap.animateCamera(CameraUpdateFactory.newLatLng(mPendingCameraTarget));
+			mPendingCameraTarget = null;
+		}
+	}
+	
+	private void applyAppend(long id, List<LatLng> points){
+		ManagedPolyline managed = mManagedMap.get(id);
+		if(managed!=null){
+			managed.appendAll(points);
+			return;
+		}
 		Polyline oldLine = mPolylineMap.get(id);
 		int color = oldLine.getColor();
-		List<LatLng> points = oldLine.getPoints();
 		float width = oldLine.getWidth();
 		float zIndex = oldLine.getZIndex();
 		
 		// Copy old points
 		List<LatLng> newPoints = new ArrayList<LatLng>();
+		newPoints.addAll(oldLine.getPoints());
+		// Add new points
 		newPoints.addAll(points);
-		// Add new point
-		newPoints.add(point);
 		
 		// Remove old polyline
 		oldLine.remove();
@@ -96,31 +376,84 @@ public class PolylineManager {
 		if(clearObjectsInMap){
 			mGoogleMap.clear();
 		}
+		// Stops pending work of managed polylines either way
+		for(int slot=mManagedMap.firstSlot(); slot>=0; slot=mManagedMap.nextSlot(slot)){
+			ManagedPolyline managed = mManagedMap.valueAt(slot);
+			if(clearObjectsInMap){
+				managed.remove();
+			}else{
+				managed.cancel();
+			}
+		}
 		mPolylineMap.clear();
+		mManagedMap.clear();
+		if(mIsCoalescingAppends){
+			mTicker.cancel();
+			mPendingAppends.clear();
+			mPendingCameraTarget = null;
+		}
+	}
+	
+	/**
+	 * Clears this manager, leaving its polylines on map, and stops its background thread.
+	 * The manager should not be used afterwards.
+	 */
+	public void destroy(){
+		clear(false);
+		if(mExecutor!=null){
+			mExecutor.shutdownNow();
+			mExecutor = null;
+		}
 	}
 	
 	public Polyline getPolyline(long id){
 		Polyline polyline = mPolylineMap.get(id);
 		if(polyline!=null){
 			return polyline;
+		}else if(mManagedMap.containsKey(id)){
+			throw new IllegalArgumentException("Polyline with given id="+id+" is drawn with several polylines. Use getSegments() instead.");
 		}else{
 			throw new IllegalArgumentException("Polyline with given id="+id+" does not exists.");
 		}
 	}
 	
 	public void remove(long id){
+		if(mIsCoalescingAppends){
+			mPendingAppends.remove(id);
+		}
+		ManagedPolyline managed = mManagedMap.remove(id);
+		if(managed!=null){
+			managed.remove();
+			return;
+		}
 		Polyline polyline = getPolyline(id);
 		mPolylineMap.remove(id);
 		polyline.remove();
 	}
 	
+	/**
+	 * Removes the polyline of given id, whatever its kind, before another polyline takes the id.
+	 */
+	private void removeIfExists(long id){
+		if(mPolylineMap.containsKey(id) || mManagedMap.containsKey(id)){
+			remove(id);
+		}
+	}
+	
 	public void remove(Polyline polyline){
-		Collection<Polyline> values = mPolylineMap.values();
-		for(Polyline p : values){
+		for(int slot=mPolylineMap.firstSlot(); slot>=0; slot=mPolylineMap.nextSlot(slot)){
+			Polyline p = mPolylineMap.valueAt(slot);
 			if(polyline.equals(p)){
-				mPolylineMap.remove(p);
-				p.remove();
-				break;
+				remove(mPolylineMap.keyAt(slot));
+				return;
+			}
+		}
+		// A part of a managed polyline removes the whole polyline
+		for(int slot=mManagedMap.firstSlot(); slot>=0; slot=mManagedMap.nextSlot(slot)){
+			ManagedPolyline managed = mManagedMap.valueAt(slot);
+			if(managed.contains(polyline)){
+				remove(mManagedMap.keyAt(slot));
+				return;
 			}
 		}
 	}
@@ -129,4 +462,11 @@ public class PolylineManager {
 		this.mGoogleMap = map;
 	}
 	
+	@Override
+	public void onCameraChange(CameraPosition position) {
+		for(int slot=mManagedMap.firstSlot(); slot>=0; slot=mManagedMap.nextSlot(slot)){
+			mManagedMap.valueAt(slot).onCameraChange(position);
+		}
+	}
+	
 }
@@ -0,0 +1,40 @@
+/*
+ * Copyright 2013 Taeho Kim (jyte82@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.androidhuman.google.maps.v2.support;
+
+import com.google.android.gms.maps.model.PolylineOptions;
+
+/**
+ * Helpers to copy the style of polylines, leaving their points out.
+ */
+class PolylineOptionsUtils {
+
+	private PolylineOptionsUtils(){
+	}
+
+	/**
+	 * Returns a new options object with the same style as given one, and no point.
+	 */
+	static PolylineOptions copyStyle(PolylineOptions options){
+		return new PolylineOptions()
+			.color(options.getColor())
+			.width(options.getWidth())
+			.zIndex(options.getZIndex())
+			.visible(options.isVisible())
+			.geodesic(options.isGeodesic());
+	}
+}
@@ -0,0 +1,116 @@
+/*
+ * Copyright 2013 Taeho Kim (jyte82@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.androidhuman.google.maps.v2.support;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.google.android.gms.maps.model.LatLng;
+
+/**
+ * Douglas-Peucker simplification of polylines, measured in Web Mercator world coordinates
+ * so that a tolerance given in pixels holds at every latitude.
+ */
+class PolylineSimplifier {
+	// Width of the world in pixels at zoom level 0
+	static final int WORLD_SIZE = 256;
+
+	private PolylineSimplifier(){
+	}
+
+	/**
+	 * Returns the points of a line that deviate from it by more than given tolerance at given zoom level.
+	 * The first and last points are always kept.
+	 * @param points Points of the line. Only the first count points are used.
+	 * @param count Number of points to simplify
+	 * @param tolerancePixels Largest distance a dropped point may have from the simplified line, in pixels.
+	 * @param zoom Zoom level the tolerance applies at
+	 */
+	static List<LatLng> simplify(List<LatLng> points, int count, float tolerancePixels, int zoom){
+		if(count<=2){
+			return new ArrayList<LatLng>(points.subList(0, count));
+		}
+		double[] x = new double[count];
+		double[] y = new double[count];
+		for(int i=0; i<count; i++){
+			LatLng point = points.get(i);
+			x[i] = (point.longitude + 180) / 360;
+			double sinLat = Math.sin(Math.toRadians(Math.max(-85, Math.min(85, point.latitude))));
+			y[i] = 0.5 - Math.log((1 + sinLat) / (1 - sinLat)) / (4 * Math.PI);
+		}
+		double tolerance = tolerancePixels / (WORLD_SIZE * Math.pow(2, zoom));
+		boolean[] isKept = new boolean[count];
+		isKept[0] = true;
+		isKept[count - 1] = true;
+		int keptCount = 2;
+
+		// Explicit stack of ranges, as recursion could overflow on long lines
+		int[] stack = new int[64];
+		int top = 0;
+		stack[top++] = 0;
+		stack[top++] = count - 1;
+		double squaredTolerance = tolerance * tolerance;
+		while(top>0){
+			int last = stack[--top];
+			int first = stack[--top];
+			int farthest = -1;
+			double maxDistance = squaredTolerance;
+			for(int i=first + 1; i<last; i++){
+				double distance = squaredSegmentDistance(x[i], y[i], x[first], y[first], x[last], y[last]);
+				if(distance>maxDistance){
+					maxDistance = distance;
+					farthest = i;
+				}
+			}
+			if(farthest<0){
+				continue;
+			}
+			isKept[farthest] = true;
+			keptCount++;
+			if(top + 4>stack.length){
+				int[] newStack = new int[stack.length * 2];
+				System.arraycopy(stack, 0, newStack, 0, top);
+				stack = newStack;
+			}
+			stack[top++] = first;
+			stack[top++] = farthest;
+			stack[top++] = farthest;
+			stack[top++] = last;
+		}
+
+		List<LatLng> simplified = new ArrayList<LatLng>(keptCount);
+		for(int i=0; i<count; i++){
+			if(isKept[i]){
+				simplified.add(points.get(i));
+			}
+		}
+		return simplified;
+	}
+
+	private static double squaredSegmentDistance(double px, double py, double ax, double ay, double bx, double by){
+		double dx = bx - ax;
+		double dy = by - ay;
+		double t = 0;
+		double lengthSquared = dx * dx + dy * dy;
+		if(lengthSquared>0){
+			t = Math.max(0, Math.min(1, ((px - ax) * dx + (py - ay) * dy) / lengthSquared));
+		}
+		double ex = ax + t * dx - px;
+		double ey = ay + t * dy - py;
+		return ex * ex + ey * ey;
+	}
+}
@@ -0,0 +1,125 @@
+/*
+ * Copyright 2013 Taeho Kim (jyte82@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.androidhuman.google.maps.v2.support;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.google.android.gms.maps.GoogleMap;
+import com.google.android.gms.maps.model.LatLng;
+import com.google.android.gms.maps.model.Polyline;
+import com.google.android.gms.maps.model.PolylineOptions;
+
+/**
+ * Polyline drawn as a chain of segment polylines of bounded size, so that appending a point
+ * only updates the last segment, whatever the length of the whole line.<p>
+ * Each segment holds up to the segment size points, and starts at the last point of the previous one
+ * so that the line looks continuous. Once the last segment is full, it is left alone for good
+ * and a new segment is started.
+ */
+class SegmentedPolyline extends ManagedPolyline {
+	static final int DEFAULT_SEGMENT_SIZE = 500;
+
+	private GoogleMap mGoogleMap;
+	private PolylineOptions mStyle;
+	private int mSegmentSize;
+	private ArrayList<LatLng> mPoints;
+	private ArrayList<Polyline> mSegments;
+	// Index of the first point of the last segment, and the number of points it has on map
+	private int mTailStart;
+	private int mTailCount;
+
+	SegmentedPolyline(GoogleMap map, PolylineOptions options, int segmentSize){
+		if(segmentSize<2){
+			throw new IllegalArgumentException("Segment size should be at least 2.");
+		}
+		mGoogleMap = map;
+		mStyle = PolylineOptionsUtils.copyStyle(options);
+		mSegmentSize = segmentSize;
+		mPoints = new ArrayList<LatLng>(options.getPoints());
+		mSegments = new ArrayList<Polyline>();
+		syncTail();
+	}
+
+	@Override
+	void append(LatLng point){
+		mPoints.add(point);
+		syncTail();
+	}
+
+	/**
+	 * Appends points, updating each touched segment once.
+	 */
+	@Override
+	void appendAll(List<LatLng> points){
+		mPoints.addAll(points);
+		syncTail();
+	}
+
+	@Override
+	List<LatLng> getPoints(){
+		return new ArrayList<LatLng>(mPoints);
+	}
+
+	@Override
+	int getPointCount(){
+		return mPoints.size();
+	}
+
+	@Override
+	List<Polyline> getPolylines(){
+		return mSegments;
+	}
+
+	@Override
+	void remove(){
+		for(Polyline segment : mSegments){
+			segment.remove();
+		}
+		mSegments.clear();
+	}
+
+	/**
+	 * Puts the points from the start of the last segment on map,
+	 * closing full segments and starting new ones as needed.<p>
+	 * A polyline on map can only have its points replaced as a whole, so the last segment is sent again
+	 * with every new point. This is what the segment size bounds. A segment already full on map is not sent again.
+	 */
+	private void syncTail(){
+		boolean isNewTail = mSegments.isEmpty();
+		while(mPoints.size() - mTailStart>mSegmentSize){
+			int end = mTailStart + mSegmentSize;
+			if(isNewTail || mTailCount<mSegmentSize){
+				setTailPoints(mTailStart, end, isNewTail);
+			}
+			// The next segment starts where this one ends
+			mTailStart = end - 1;
+			isNewTail = true;
+		}
+		setTailPoints(mTailStart, mPoints.size(), isNewTail);
+	}
+
+	private void setTailPoints(int from, int to, boolean isNewTail){
+		List<LatLng> points = new ArrayList<LatLng>(mPoints.subList(from, to));
+		if(isNewTail){
+			mSegments.add(mGoogleMap.addPolyline(PolylineOptionsUtils.copyStyle(mStyle).addAll(points)));
+		}else{
+			mSegments.get(mSegments.size() - 1).setPoints(points);
+		}
+		mTailCount = to - from;
+	}
+}
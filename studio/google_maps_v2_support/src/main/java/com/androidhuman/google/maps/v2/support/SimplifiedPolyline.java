@@ -0,0 +1,222 @@
+/*
+ * Copyright 2013 Taeho Kim (jyte82@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.androidhuman.google.maps.v2.support;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import com.google.android.gms.maps.GoogleMap;
+import com.google.android.gms.maps.model.CameraPosition;
+import com.google.android.gms.maps.model.LatLng;
+import com.google.android.gms.maps.model.Polyline;
+import com.google.android.gms.maps.model.PolylineOptions;
+
+/**
+ * Polyline keeping every point, but drawn with a version simplified for the current zoom level.<p>
+ * Zoom levels are split into bands of one level. The simplified points of a band are computed
+ * on a background thread when the camera first enters it, along with the neighbouring bands,
+ * and cached until the line grows enough. Meanwhile the line keeps its current points.
+ * Since points are only appended, a cached version stays valid: points appended after it was computed
+ * are drawn as they are after the simplified ones.
+ */
+class SimplifiedPolyline extends ManagedPolyline {
+	static final float DEFAULT_TOLERANCE = 1;
+	static final int MAX_BAND = 21;
+
+	// Points appended since a band was simplified that trigger simplifying it again
+	private static final int MIN_RESIMPLIFY_COUNT = 256;
+
+	private Executor mExecutor;
+	private Handler mHandler;
+	private float mTolerance;
+	private Polyline mPolyline;
+	private ArrayList<LatLng> mPoints;
+	private HashMap<Integer, Band> mBands;
+	private int mBand;
+	private boolean mIsComputing;
+	private boolean mIsCancelled;
+
+	SimplifiedPolyline(GoogleMap map, PolylineOptions options, float tolerancePixels, Executor executor){
+		if(tolerancePixels<=0){
+			throw new IllegalArgumentException("Tolerance should be greater than 0.");
+		}
+		mExecutor = executor;
+		mHandler = new Handler(Looper.getMainLooper());
+		mTolerance = tolerancePixels;
+		mPoints = new ArrayList<LatLng>(options.getPoints());
+		mBands = new HashMap<Integer, Band>();
+		mBand = bandOf(map.getCameraPosition().zoom);
+		// Drawn once the first simplification is ready
+		mPolyline = map.addPolyline(PolylineOptionsUtils.copyStyle(options));
+		compute();
+	}
+
+	@Override
+	void append(LatLng point){
+		appendAll(Collections.singletonList(point));
+	}
+
+	@Override
+	void appendAll(List<LatLng> points){
+		mPoints.addAll(points);
+		Band band = mBands.get(mBand);
+		if(band!=null){
+			draw(band);
+			if(isOutgrown(band)){
+				compute();
+			}
+		}
+	}
+
+	@Override
+	List<LatLng> getPoints(){
+		return new ArrayList<LatLng>(mPoints);
+	}
+
+	@Override
+	int getPointCount(){
+		return mPoints.size();
+	}
+
+	/**
+	 * Returns the number of points currently drawn on map.
+	 */
+	int getDrawnPointCount(){
+		Band band = mBands.get(mBand);
+		return band!=null ? band.points.size() + mPoints.size() - band.sourceCount : 0;
+	}
+
+	@Override
+	List<Polyline> getPolylines(){
+		return Collections.singletonList(mPolyline);
+	}
+
+	@Override
+	void remove(){
+		cancel();
+		mPolyline.remove();
+	}
+
+	@Override
+	void cancel(){
+		mIsCancelled = true;
+	}
+
+	@Override
+	void onCameraChange(CameraPosition position){
+		int band = bandOf(position.zoom);
+		if(band==mBand){
+			return;
+		}
+		mBand = band;
+		Band cached = mBands.get(band);
+		if(cached!=null){
+			draw(cached);
+		}else{
+			compute();
+		}
+	}
+
+	private void draw(Band band){
+		ArrayList<LatLng> points = new ArrayList<LatLng>(band.points.size() + mPoints.size() - band.sourceCount);
+		points.addAll(band.points);
+		points.addAll(mPoints.subList(band.sourceCount, mPoints.size()));
+		mPolyline.setPoints(points);
+	}
+
+	/**
+	 * Simplifies the line for the current band and its neighbours on the background thread,
+	 * unless a computation is already running, in which case it is checked again when that one ends.
+	 */
+	private void compute(){
+		if(mIsComputing){
+			return;
+		}
+		mIsComputing = true;
+		// Points are only appended, so the first count points never change
+		final List<LatLng> points = Collections.unmodifiableList(new ArrayList<LatLng>(mPoints));
+		final int[] bands = new int[]{ mBand, mBand - 1, mBand + 1 };
+		mExecutor.execute(new Runnable() {
+			@Override
+			public void run() {
+				final Band[] results = new Band[bands.length];
+				for(int i=0; i<bands.length; i++){
+					if(bands[i]>=0 && bands[i]<=MAX_BAND){
+						results[i] = new Band(PolylineSimplifier.simplify(points, points.size(), mTolerance, bands[i]), points.size());
+					}
+				}
+				mHandler.post(new Runnable() {
+					@Override
+					public void run() {
+						onComputed(bands, results);
+					}
+				});
+			}
+		});
+	}
+
+	private void onComputed(int[] bands, Band[] results){
+		mIsComputing = false;
+		if(mIsCancelled){
+			return;
+		}
+		for(int i=0; i<bands.length; i++){
+			if(results[i]!=null){
+				mBands.put(bands[i], results[i]);
+			}
+		}
+		Band band = mBands.get(mBand);
+		if(band==null){
+			// The camera moved to another band meanwhile
+			compute();
+			return;
+		}
+		draw(band);
+		if(isOutgrown(band)){
+			compute();
+		}
+	}
+
+	/**
+	 * Returns whether enough points were appended since a band was simplified to simplify it again.
+	 */
+	private boolean isOutgrown(Band band){
+		int appendedCount = mPoints.size() - band.sourceCount;
+		return appendedCount>=Math.max(MIN_RESIMPLIFY_COUNT, band.sourceCount / 8);
+	}
+
+	private static int bandOf(float zoom){
+		return Math.max(0, Math.min(MAX_BAND, (int)Math.floor(zoom)));
+	}
+
+	private static class Band {
+		final List<LatLng> points;
+		// Number of points of the line the band was simplified from
+		final int sourceCount;
+
+		Band(List<LatLng> points, int sourceCount){
+			this.points = points;
+			this.sourceCount = sourceCount;
+		}
+	}
+}
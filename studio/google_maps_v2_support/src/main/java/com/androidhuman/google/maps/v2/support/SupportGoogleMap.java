@@ -16,7 +16,10 @@
  */
 package com.androidhuman.google.maps.v2.support;
 
+import java.util.Collection;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 
 import android.content.Context;
 import android.content.SharedPreferences;
@@ -56,6 +59,7 @@ public class SupportGoogleMap implements OnCameraChangeListener{
 	private static final String KEY_LAST_ZOOM = "com_androidhuman_google_maps_v2_support_last_zoom";
 	
 	private static final int INVALID_VALUE = -1000;
+	private static final int ICON_CACHE_MEMORY_FRACTION = 16;
 	
 	private boolean mRememberLastCamPosition = true;
 	private boolean mIsInitialPositionRequested = false;
@@ -67,12 +71,15 @@ public class SupportGoogleMap implements OnCameraChangeListener{
 	private GoogleMap mGoogleMap;
 	private MarkerManager mMarkerManager;
 	private PolylineManager mPolylineManager;
+	private MarkerIconCache mIconCache;
 	
 	private OnCameraChangeListener mCameraChangeListener;
 	
 	private SupportGoogleMap(Context context){
 		mMarkerManager = new MarkerManager();
 		mPolylineManager = new PolylineManager();
+		mIconCache = new MarkerIconCache(Runtime.getRuntime().maxMemory() / ICON_CACHE_MEMORY_FRACTION);
+		mMarkerManager.setIconCache(mIconCache);
 		
 		mSharedPreferences = PreferenceManager.getDefaultSharedPreferences(context);
 		mSharedPreferenceEditor = mSharedPreferences.edit();
@@ -149,12 +156,109 @@ public class SupportGoogleMap implements OnCameraChangeListener{
 		return mMarkerManager.add(id, options);
 	}
 	
+	/**
+	 * Adds a marker to this map, using the icon of given style from the icon cache.
+	 * See {@link #getIconCache()}.
+	 * @param options A marker options object that defines how to render the marker.
+	 * @param styleKey Style key of the marker's icon
+	 * @return The {@link SupportMarker} object that was added
+	 */
+	public SupportMarker addMarker(MarkerOptions options, String styleKey){
+		return mMarkerManager.add(options, styleKey);
+	}
+	
+	/**
+	 * Adds a marker to map with given marker id, using the icon of given style from the icon cache.
+	 * @param id Marker's id
+	 * @param options A marker options object that defines how to render the marker.
+	 * @param styleKey Style key of the marker's icon
+	 * @return The {@link SupportMarker} object that was added
+	 */
+	public SupportMarker addMarker(long id, MarkerOptions options, String styleKey){
+		return mMarkerManager.add(id, options, styleKey);
+	}
+	
+	/**
+	 * Adds a marker to this map, following given level-of-detail rule.
+	 * See {@link MarkerManager#setLevelOfDetail(SupportMarker, MarkerLevelOfDetail)}.
+	 * @param options A marker options object that defines how to render the marker.
+	 * @param rule Level-of-detail rule of the marker
+	 * @return The {@link SupportMarker} object that was added
+	 */
+	public SupportMarker addMarker(MarkerOptions options, MarkerLevelOfDetail rule){
+		return mMarkerManager.add(options, rule);
+	}
+	
+	/**
+	 * Adds markers to map with auto-generated marker ids.<p>
+	 * Ids are returned immediately, while markers are added over the following frames
+	 * to keep the map responsive. See {@link MarkerManager#setFrameBudget(long)}.
+	 * @param options Marker options objects that define how to render the markers.
+	 * @param listener Callback that reports progress of the insertion, or null.
+	 * @return Ids of the markers, in the iteration order of given options.
+	 */
+	public long[] addMarkers(Collection<MarkerOptions> options, SupportOnMarkersAddListener listener){
+		return mMarkerManager.addAll(options, listener);
+	}
+	
+	/**
+	 * Adds markers to map with given marker ids.<p>
+	 * Markers are added over the following frames to keep the map responsive.
+	 * See {@link MarkerManager#setFrameBudget(long)}.
+	 * @param options Marker options objects that define how to render the markers, keyed by marker's id.
+	 * @param listener Callback that reports progress of the insertion, or null.
+	 */
+	public void addMarkers(Map<Long, MarkerOptions> options, SupportOnMarkersAddListener listener){
+		mMarkerManager.addAll(options, listener);
+	}
+	
+	/**
+	 * Adds markers read from given iterator on a background thread, holding only a bounded
+	 * number of them in memory at once. See {@link MarkerManager#addStream(MarkerStream.Producer, int, SupportOnMarkerStreamListener)}.
+	 * @param options Iterator of marker options objects, which is read on a background thread.
+	 * @param listener Callback that reports progress of the stream, or null.
+	 * @return The stream, which should be cancelled when the markers are no longer needed.
+	 */
+	public MarkerStream addMarkers(Iterator<MarkerOptions> options, SupportOnMarkerStreamListener listener){
+		return mMarkerManager.addStream(options, listener);
+	}
+	
+	/**
+	 * Adds markers produced on a background thread by given producer, holding only a bounded
+	 * number of them in memory at once. See {@link MarkerManager#addStream(MarkerStream.Producer, int, SupportOnMarkerStreamListener)}.
+	 * @param producer Producer of the markers
+	 * @param listener Callback that reports progress of the stream, or null.
+	 * @return The stream, which should be cancelled when the markers are no longer needed.
+	 */
+	public MarkerStream addMarkers(MarkerStream.Producer producer, SupportOnMarkerStreamListener listener){
+		return mMarkerManager.addStream(producer, listener);
+	}
+	
+	/**
+	 * Makes the markers on this map match given markers, adding, updating and removing
+	 * only the markers that differ. See {@link MarkerManager#submit(Map)}.
+	 * @param options Options of every marker that should exist, keyed by marker's id.
+	 */
+	public void submitMarkers(Map<Long, MarkerOptions> options){
+		mMarkerManager.submit(options);
+	}
+	
 	/**
 	 * Removes all markers, overlays, and polylines from the map.
 	 */
 	public void clear(){
 		mGoogleMap.clear();
 		mMarkerManager.clear(false);
+		mPolylineManager.clear(false);
+	}
+	
+	/**
+	 * Stops the background threads of the managers, e.g. when the map is destroyed.
+	 * This object should not be used afterwards.
+	 */
+	public void destroy(){
+		mMarkerManager.destroy();
+		mPolylineManager.destroy();
 	}
 
 	
@@ -212,6 +316,25 @@ public class SupportGoogleMap implements OnCameraChangeListener{
 		return mMarkerManager;
 	}
 	
+	/**
+	 * Returns the cache of marker icons used by methods taking a style key.<p>
+	 * Set an {@link MarkerIconCache.IconFactory} on it to render icons for your style keys.
+	 * By default, the cache may hold up to 1/{@value #ICON_CACHE_MEMORY_FRACTION} of the heap.
+	 * @return The icon cache
+	 */
+	public MarkerIconCache getIconCache(){
+		return mIconCache;
+	}
+	
+	/**
+	 * Returns the queue through which background threads can add, update and remove markers.
+	 * See {@link MarkerManager#getMutationQueue()}.
+	 * @return The {@link MarkerMutationQueue}
+	 */
+	public MarkerMutationQueue getMarkerMutationQueue(){
+		return mMarkerManager.getMutationQueue();
+	}
+	
 	public PolylineManager getPolylineManager(){
 		return mPolylineManager;
 	}
@@ -272,16 +395,63 @@ public class SupportGoogleMap implements OnCameraChangeListener{
         mPolylineManager.add(id, options);
     }
 
+    /**
+     * Adds a polyline drawn as a chain of segments, so that appending points stays cheap however long it gets.
+     * See {@link PolylineManager#addSegmented(PolylineOptions)}.
+     * @param options A polyline options object that defines how to render the Polyline.
+     * @return The id of the polyline that was added to map.
+     */
+    public long addSegmentedPolyline(PolylineOptions options){
+        return mPolylineManager.addSegmented(options);
+    }
+
+    /**
+     * Adds a polyline drawn with a version of its points simplified for the current zoom level.
+     * See {@link PolylineManager#addSimplified(PolylineOptions)}.
+     * @param options A polyline options object that defines how to render the Polyline.
+     * @return The id of the polyline that was added to map.
+     */
+    public long addSimplifiedPolyline(PolylineOptions options){
+        return mPolylineManager.addSimplified(options);
+    }
+
+    /**
+     * Adds a polyline drawn only where it meets the camera bounds plus a margin.
+     * See {@link PolylineManager#addClipped(PolylineOptions)}.
+     * @param options A polyline options object that defines how to render the Polyline.
+     * @return The id of the polyline that was added to map.
+     */
+    public long addClippedPolyline(PolylineOptions options){
+        return mPolylineManager.addClipped(options);
+    }
+
     /**
      * Appends a point to an existing polyline.
      * @param id Polyline's id
      * @param point a Point to append with
      */
     public void appendPolyline(long id, LatLng point, boolean shouldAnimateToLastPoint){
-        mPolylineManager.append(id, point);
-        if(shouldAnimateToLastPoint){
-            animateTo(point);
-        }
+        mPolylineManager.append(id, point, shouldAnimateToLastPoint);
+    }
+
+    /**
+     * Appends points to an existing polyline, updating the map once for all of them.
+     * @param id Polyline's id
+     * @param points Points to append with, in order.
+     * @param shouldAnimateToLastPoint true to move the camera to the last point.
+     */
+    public void appendPolyline(long id, List<LatLng> points, boolean shouldAnimateToLastPoint){
+        mPolylineManager.appendAll(id, points, shouldAnimateToLastPoint);
+    }
+
+    /**
+     * Sets whether points appended to a polyline within a frame are merged into a single map update,
+     * with at most one camera animation per frame.
+     * See {@link PolylineManager#setAppendCoalescingEnabled(boolean)}.
+     * @param enabled true to coalesce appends.
+     */
+    public void setPolylineAppendCoalescingEnabled(boolean enabled){
+        mPolylineManager.setAppendCoalescingEnabled(enabled);
     }
 	
 	/**
@@ -292,6 +462,15 @@ public class SupportGoogleMap implements OnCameraChangeListener{
 		this.mCameraChangeListener = listener;
 	}
 	
+	/**
+	 * Sets the adapter rendering info windows of markers, caching their content.
+	 * See {@link MarkerManager#setInfoWindowAdapter(SupportInfoWindowAdapter)}.
+	 * @param adapter Info window adapter, or null to use the default info window.
+	 */
+	public void setInfoWindowAdapter(SupportInfoWindowAdapter<?> adapter){
+		mMarkerManager.setInfoWindowAdapter(adapter);
+	}
+	
 	public void setOnInfoWindowClickListener(SupportOnInfoWindowClickListener listener){
 		mMarkerManager.setOnInfoWindowClickListener(listener);
 	}
@@ -300,6 +479,25 @@ public class SupportGoogleMap implements OnCameraChangeListener{
 		mMarkerManager.setOnMarkerClickListener(listener);
 	}
 	
+	/**
+	 * Sets a drag listener receiving copied positions, optionally on a background thread.
+	 * See {@link MarkerManager#setOnMarkerDragListener(SupportOnMarkerDragPositionListener, boolean)}.
+	 * @param listener Drag listener, or null.
+	 * @param inBackground true to call the listener on a background thread.
+	 */
+	public void setOnMarkerDragListener(SupportOnMarkerDragPositionListener listener, boolean inBackground){
+		mMarkerManager.setOnMarkerDragListener(listener, inBackground);
+	}
+	
+	/**
+	 * Limits how often drag listeners are notified while a marker is dragged.
+	 * See {@link MarkerManager#setMarkerDragThrottle(long)}.
+	 * @param minIntervalMillis Minimum interval between drag events in milliseconds, or 0.
+	 */
+	public void setMarkerDragThrottle(long minIntervalMillis){
+		mMarkerManager.setMarkerDragThrottle(minIntervalMillis);
+	}
+	
 	public void setOnMarkerDragListener(SupportGoogleMap.SupportOnMarkerDragListener listener){
 		mMarkerManager.setOnMarkerDragListener(listener);
 	}
@@ -320,6 +518,99 @@ public class SupportGoogleMap implements OnCameraChangeListener{
 		mMarkerManager.update(marker, title, snippet);
 	}
 	
+	public void updateMarker(SupportMarker marker, MarkerOptions options, String styleKey){
+		mMarkerManager.update(marker, options, styleKey);
+	}
+	
+	/**
+	 * Changes the icon of a marker to the icon of given style from the icon cache.
+	 * @param marker The marker to update
+	 * @param styleKey Style key of the marker's icon
+	 */
+	public void updateMarkerStyle(SupportMarker marker, String styleKey){
+		mMarkerManager.updateStyle(marker, styleKey);
+	}
+	
+	/**
+	 * Sets which zoom levels a marker exists at, and which icon it uses at each zoom level.
+	 * See {@link MarkerManager#setLevelOfDetail(SupportMarker, MarkerLevelOfDetail)}.
+	 * @param marker The marker
+	 * @param rule Level-of-detail rule, or null to remove the rule.
+	 */
+	public void setMarkerLevelOfDetail(SupportMarker marker, MarkerLevelOfDetail rule){
+		mMarkerManager.setLevelOfDetail(marker, rule);
+	}
+	
+	/**
+	 * Puts a marker in a named group. See {@link MarkerManager#setGroup(SupportMarker, String)}.
+	 * @param marker The marker
+	 * @param group Name of the group, or null to take the marker out of its group.
+	 */
+	public void setMarkerGroup(SupportMarker marker, String group){
+		mMarkerManager.setGroup(marker, group);
+	}
+	
+	/**
+	 * Shows or hides every marker of a group without removing them from map.
+	 * See {@link MarkerManager#setGroupVisible(String, boolean)}.
+	 * @param group Name of the group
+	 * @param visible true to show the group.
+	 */
+	public void setMarkerGroupVisible(String group, boolean visible){
+		mMarkerManager.setGroupVisible(group, visible);
+	}
+	
+	/**
+	 * Attaches a compact store of logical markers, of which only those around the camera are put on map.
+	 * See {@link MarkerManager#setMarkerStore(MarkerStore)}.
+	 * @param store Marker store, or null to detach the current store.
+	 */
+	public void setMarkerStore(MarkerStore store){
+		mMarkerManager.setMarkerStore(store);
+	}
+	
+	/**
+	 * Moves a marker smoothly to given position.
+	 * See {@link MarkerManager#animate(SupportMarker, LatLng, float, long)}.
+	 * @param marker The marker to move
+	 * @param position Target position
+	 * @param duration Duration of the move, in milliseconds
+	 */
+	public void animateMarker(SupportMarker marker, LatLng position, long duration){
+		mMarkerManager.animate(marker, position, duration);
+	}
+	
+	/**
+	 * Moves and rotates a marker smoothly to given position and rotation.
+	 * See {@link MarkerManager#animate(SupportMarker, LatLng, float, long)}.
+	 * @param marker The marker to move
+	 * @param position Target position
+	 * @param rotation Target rotation, in degrees clockwise
+	 * @param duration Duration of the move, in milliseconds
+	 */
+	public void animateMarker(SupportMarker marker, LatLng position, float rotation, long duration){
+		mMarkerManager.animate(marker, position, rotation, duration);
+	}
+	
+	/**
+	 * Enables or disables virtualization of markers.
+	 * When enabled, only markers near the camera bounds are kept on map.
+	 * See {@link MarkerManager#setVirtualizationEnabled(boolean)}.
+	 * @param enabled true to enable virtualization.
+	 */
+	public void setMarkerVirtualizationEnabled(boolean enabled){
+		mMarkerManager.setVirtualizationEnabled(enabled);
+	}
+	
+	/**
+	 * Enables or disables clustering of markers that are close to each other on screen.
+	 * See {@link MarkerManager#setClusteringEnabled(boolean)}.
+	 * @param enabled true to enable clustering.
+	 */
+	public void setMarkerClusteringEnabled(boolean enabled){
+		mMarkerManager.setClusteringEnabled(enabled);
+	}
+	
 	public void removeMarker(SupportMarker marker){
 		mMarkerManager.remove(marker);
 	}
@@ -345,7 +636,7 @@ public class SupportGoogleMap implements OnCameraChangeListener{
      * @param marker
      */
     public void animateTo(SupportMarker marker){
-        mGoogleMap.animateCamera(CameraUpdateFactory.newLatLng(marker.getMarker().getPosition()));
+        mGoogleMap.animateCamera(CameraUpdateFactory.newLatLng(marker.getPosition()));
     }
 
 	@Override
@@ -355,6 +646,9 @@ public class SupportGoogleMap implements OnCameraChangeListener{
 			.putFloat(KEY_LAST_LONGITUDE, (float)position.target.longitude)
 			.putFloat(KEY_LAST_ZOOM, (float)position.zoom).commit();
 		}
+		
+		mMarkerManager.onCameraChange(position);
+		mPolylineManager.onCameraChange(position);
 			
 		if(mCameraChangeListener!=null){
 			mCameraChangeListener.onCameraChange(position);
@@ -379,6 +673,71 @@ public class SupportGoogleMap implements OnCameraChangeListener{
 		public boolean onMarkerClick(long id, Marker marker);
 	}
 	
+	/**
+	 * Click listener that is also notified when a cluster marker is clicked.
+	 * Set it with {@link SupportGoogleMap#setOnMarkerClickListener(SupportOnMarkerClickListener)}.
+	 * @author Taeho Kim
+	 */
+	public interface SupportOnClusterClickListener extends SupportOnMarkerClickListener {
+		
+		/**
+		 * Called when a cluster marker is clicked.
+		 * @param ids Ids of the markers in the cluster
+		 * @param marker The cluster marker that was clicked.
+		 * @return true to consume the event, false to zoom to or expand the cluster.
+		 */
+		public boolean onClusterClick(long[] ids, Marker marker);
+	}
+	
+	/**
+	 * Callback interface for markers added by {@link SupportGoogleMap#addMarkers(Collection, SupportOnMarkersAddListener)}.
+	 * Both methods are called on the main thread.
+	 * @author Taeho Kim
+	 */
+	public interface SupportOnMarkersAddListener {
+		
+		/**
+		 * Called after each frame that added a part of the markers.
+		 * @param added The number of markers added so far
+		 * @param total The number of markers requested
+		 */
+		public void onProgress(int added, int total);
+		
+		/**
+		 * Called when all markers were added to map.
+		 * @param ids Ids of the markers that were added
+		 */
+		public void onMarkersAdded(long[] ids);
+	}
+	
+	/**
+	 * Callback interface for markers added by a {@link MarkerStream}.
+	 * Every method is called on the main thread.
+	 * @author Taeho Kim
+	 */
+	public interface SupportOnMarkerStreamListener {
+		
+		/**
+		 * Called after markers were added to map.
+		 * @param ids Ids of the markers added since the last call, in the order they were produced
+		 * @param added The number of markers added so far
+		 */
+		public void onProgress(long[] ids, int added);
+		
+		/**
+		 * Called when every produced marker was added to map.
+		 * @param added The number of markers added
+		 */
+		public void onStreamFinished(int added);
+		
+		/**
+		 * Called when the producer failed. Markers produced before the failure were added.
+		 * @param e The exception thrown by the producer
+		 * @param added The number of markers added
+		 */
+		public void onStreamFailed(Exception e, int added);
+	}
+	
 	public interface SupportOnMarkerDragListener{
 		/**
 		 * Called repeatedly while a marker is being dragged. 
@@ -407,4 +766,34 @@ public class SupportGoogleMap implements OnCameraChangeListener{
 		public void onMarkerDragStart(long id, Marker marker);
 	}
 	
+	/**
+	 * Drag listener receiving copies of the marker positions instead of the markers,
+	 * so that it can be called on a background thread.
+	 * See {@link MarkerManager#setOnMarkerDragListener(SupportOnMarkerDragPositionListener, boolean)}.
+	 * @author Taeho Kim
+	 */
+	public interface SupportOnMarkerDragPositionListener {
+		
+		/**
+		 * Called while a marker is being dragged, at most once per throttle interval.
+		 * @param id Marker's id
+		 * @param position Latest position of the marker
+		 */
+		public void onMarkerDrag(long id, LatLng position);
+		
+		/**
+		 * Called once when a marker has finished being dragged, or was removed while dragged.
+		 * @param id Marker's id
+		 * @param position Final position of the marker
+		 */
+		public void onMarkerDragEnd(long id, LatLng position);
+		
+		/**
+		 * Called once when a marker starts being dragged.
+		 * @param id Marker's id
+		 * @param position Position of the marker
+		 */
+		public void onMarkerDragStart(long id, LatLng position);
+	}
+	
 }
@@ -0,0 +1,283 @@
+/*
+ * Copyright 2013 Taeho Kim (jyte82@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.androidhuman.google.maps.v2.support;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.concurrent.ExecutorService;
+
+import android.view.View;
+
+import com.androidhuman.google.maps.v2.support.model.SupportMarker;
+import com.google.android.gms.maps.GoogleMap.InfoWindowAdapter;
+import com.google.android.gms.maps.model.Marker;
+import com.google.android.gms.maps.model.MarkerOptions;
+
+/**
+ * Base class of info window adapters for markers managed by a {@link MarkerManager}.<p>
+ * Showing an info window is split into preparing its content, e.g. formatting text,
+ * and binding the content to a view. Prepared content is cached per marker id and dropped
+ * when the marker is updated or removed, and a single view is inflated and reused for every marker,
+ * so showing an info window again only binds cached content.
+ * Content of markers around the camera can be prepared ahead on a background thread,
+ * see {@link #setPrefetchEnabled(boolean)}.<p>
+ * Set it with {@link SupportGoogleMap#setInfoWindowAdapter(SupportInfoWindowAdapter)}.
+ * @param <C> Type of the prepared content
+ * @author Taeho Kim
+ *
+ */
+public abstract class SupportInfoWindowAdapter<C> implements InfoWindowAdapter {
+	public static final int DEFAULT_CACHE_SIZE = 100;
+
+	private MarkerManager mMarkerManager;
+	private LinkedHashMap<Long, C> mContents;
+	private int mMaxSize = DEFAULT_CACHE_SIZE;
+	private View mView;
+	private ExecutorService mExecutor;
+	private boolean mIsPrefetchEnabled;
+
+	// Ids being prefetched and the task preparing them, removed when invalidated
+	// so that content prepared meanwhile is dropped
+	private HashMap<Long, Object> mPrefetchingIds = new HashMap<Long, Object>();
+	private int mHitCount;
+	private int mMissCount;
+
+	public SupportInfoWindowAdapter(){
+		mContents = new LinkedHashMap<Long, C>(16, 0.75f, true);
+	}
+
+	/**
+	 * Prepares the content of a marker's info window. Called on the main thread when the content
+	 * is not cached, or on a background thread when prefetching.
+	 * @param id Id of the marker
+	 * @param options A copy of the marker's options
+	 * @return The content, or null if the marker has no info window.
+	 */
+	protected abstract C onPrepareContent(long id, MarkerOptions options);
+
+	/**
+	 * Creates the view the content is bound to. Called once, the view is then reused.
+	 * @return A new view
+	 */
+	protected abstract View onCreateView();
+
+	/**
+	 * Binds prepared content to the view.
+	 * @param view View created by {@link #onCreateView()}
+	 * @param content Prepared content
+	 */
+	protected abstract void onBindView(View view, C content);
+
+	/**
+	 * Returns whether the view replaces the contents only, keeping the default window frame,
+	 * instead of the whole info window.
+	 * @return false by default.
+	 */
+	protected boolean isContentsOnly(){
+		return false;
+	}
+
+	@Override
+	public View getInfoWindow(Marker marker) {
+		return isContentsOnly() ? null : getView(marker);
+	}
+
+	@Override
+	public View getInfoContents(Marker marker) {
+		return isContentsOnly() ? getView(marker) : null;
+	}
+
+	private View getView(Marker marker){
+		if(mMarkerManager==null){
+			return null;
+		}
+		SupportMarker record = mMarkerManager.getRecordOf(marker);
+		if(record==null){
+			// Not a managed marker, e.g. a cluster marker
+			return null;
+		}
+		C content = getContent(record);
+		if(content==null){
+			return null;
+		}
+		if(mView==null){
+			mView = onCreateView();
+		}
+		onBindView(mView, content);
+		return mView;
+	}
+
+	private C getContent(SupportMarker record){
+		long id = record.getId();
+		synchronized(this){
+			C content = mContents.get(id);
+			if(content!=null){
+				mHitCount++;
+				return content;
+			}
+			mMissCount++;
+		}
+		C content = onPrepareContent(id, MarkerOptionsUtils.copy(record.getOptions()));
+		if(content!=null){
+			synchronized(this){
+				putContent(id, content);
+			}
+		}
+		return content;
+	}
+
+	/**
+	 * Sets the maximum number of cached contents. Least recently used contents are dropped first.
+	 * Default value is {@value #DEFAULT_CACHE_SIZE}.
+	 * @param maxSize Maximum number of cached contents
+	 */
+	public synchronized void setMaxCacheSize(int maxSize){
+		if(maxSize<=0){
+			throw new IllegalArgumentException("Max size should be greater than 0.");
+		}
+		mMaxSize = maxSize;
+		trimToSize();
+	}
+
+	public synchronized int getMaxCacheSize(){
+		return mMaxSize;
+	}
+
+	public synchronized int getCachedCount(){
+		return mContents.size();
+	}
+
+	public synchronized int getHitCount(){
+		return mHitCount;
+	}
+
+	public synchronized int getMissCount(){
+		return mMissCount;
+	}
+
+	/**
+	 * Drops the cached content of a marker, e.g. when data it was prepared from changed.
+	 * Updating or removing the marker through the {@link MarkerManager} does it already.
+	 * @param id Id of the marker
+	 */
+	public synchronized void invalidate(long id){
+		mContents.remove(id);
+		mPrefetchingIds.remove(id);
+	}
+
+	/**
+	 * Drops every cached content.
+	 */
+	public synchronized void invalidateAll(){
+		mContents.clear();
+		mPrefetchingIds.clear();
+	}
+
+	/**
+	 * Enables or disables preparing content on a background thread for markers around the camera,
+	 * each time the camera changes, up to the maximum cache size.
+	 * @param enabled true to prefetch content.
+	 */
+	public void setPrefetchEnabled(boolean enabled){
+		mIsPrefetchEnabled = enabled;
+		if(enabled && mExecutor==null){
+			mExecutor = BackgroundExecutors.newSingleThreadExecutor("gmap_v2_support_info_window");
+		}
+	}
+
+	public boolean isPrefetchEnabled(){
+		return mIsPrefetchEnabled;
+	}
+
+	void setMarkerManager(MarkerManager manager){
+		mMarkerManager = manager;
+		invalidateAll();
+	}
+
+	/**
+	 * Prepares on a background thread the content of given markers that is not cached yet.
+	 * Called on the main thread.
+	 */
+	void prefetch(long[] ids){
+		if(!mIsPrefetchEnabled){
+			return;
+		}
+		final long[] missingIds;
+		final MarkerOptions[] options;
+		final Object task = new Object();
+		synchronized(this){
+			int count = Math.min(ids.length, mMaxSize);
+			LongList missing = new LongList();
+			for(int i=0; i<count; i++){
+				if(!mContents.containsKey(ids[i]) && !mPrefetchingIds.containsKey(ids[i])){
+					mPrefetchingIds.put(ids[i], task);
+					missing.add(ids[i]);
+				}
+			}
+			if(missing.size()==0){
+				return;
+			}
+			missingIds = missing.toArray();
+		}
+		// Options are copied here, as they can't be read from the background thread
+		options = new MarkerOptions[missingIds.length];
+		LongObjectRegistry<SupportMarker> records = mMarkerManager.getRecords();
+		for(int i=0; i<missingIds.length; i++){
+			SupportMarker record = records.get(missingIds[i]);
+			options[i] = record!=null ? MarkerOptionsUtils.copy(record.getOptions()) : null;
+		}
+		mExecutor.execute(new Runnable() {
+			@Override
+			public void run() {
+				for(int i=0; i<missingIds.length; i++){
+					long id = missingIds[i];
+					synchronized(SupportInfoWindowAdapter.this){
+						if(mPrefetchingIds.get(id)!=task){
+							continue;
+						}
+						if(options[i]==null){
+							mPrefetchingIds.remove(id);
+							continue;
+						}
+					}
+					C content = onPrepareContent(id, options[i]);
+					synchronized(SupportInfoWindowAdapter.this){
+						if(mPrefetchingIds.get(id)!=task){
+							continue;
+						}
+						mPrefetchingIds.remove(id);
+						if(content!=null && !mContents.containsKey(id)){
+							putContent(id, content);
+						}
+					}
+				}
+			}
+		});
+	}
+
+	private void putContent(long id, C content){
+		mContents.put(id, content);
+		trimToSize();
+	}
+
+	private void trimToSize(){
+		while(mContents.size()>mMaxSize){
+			Long eldest = mContents.keySet().iterator().next();
+			mContents.remove(eldest);
+		}
+	}
+}
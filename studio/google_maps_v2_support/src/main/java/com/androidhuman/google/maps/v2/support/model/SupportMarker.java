@@ -18,12 +18,21 @@ package com.androidhuman.google.maps.v2.support.model;
 
 import com.google.android.gms.maps.model.LatLng;
 import com.google.android.gms.maps.model.Marker;
+import com.google.android.gms.maps.model.MarkerOptions;
 
 
+/**
+ * A marker managed by {@link com.androidhuman.google.maps.v2.support.MarkerManager}.<p>
+ * Besides the {@link Marker} shown on map, it keeps the options that describe the marker,
+ * so that its properties are still available while the marker is not on map.
+ * @author Taeho Kim
+ *
+ */
 public class SupportMarker {
 	private static final long INVALID_ID = -1;
 	
 	private Marker marker;
+	private MarkerOptions options;
 	private long id = INVALID_ID;
 	
 	public SupportMarker(long id, Marker marker){
@@ -31,6 +40,11 @@ public class SupportMarker {
 		this.marker = marker;
 	}
 	
+	public SupportMarker(long id, Marker marker, MarkerOptions options){
+		this(id, marker);
+		this.options = options;
+	}
+	
 	public Marker getMarker(){
 		return marker;
 	}
@@ -38,16 +52,48 @@ public class SupportMarker {
 	public void setMarker(Marker marker){
 		this.marker = marker;
 	}
+	
+	/**
+	 * Returns the options describing this marker, or null if unknown.
+	 * The returned object is owned by the manager and should be treated as read-only:
+	 * change the marker through the manager's update methods instead.
+	 * @return Options of this marker
+	 */
+	public MarkerOptions getOptions(){
+		return options;
+	}
+	
+	public void setOptions(MarkerOptions options){
+		this.options = options;
+	}
+	
+	/**
+	 * Returns whether this marker currently has a {@link Marker} on map.
+	 * @return true if the marker is on map.
+	 */
+	public boolean isOnMap(){
+		return marker!=null;
+	}
+	
 	public String getTitle(){
-		return marker!=null ? marker.getTitle() : null;
+		if(marker!=null){
+			return marker.getTitle();
+		}
+		return options!=null ? options.getTitle() : null;
 	}
 	
 	public String getSnippet(){
-		return marker!=null ? marker.getSnippet() : null;
+		if(marker!=null){
+			return marker.getSnippet();
+		}
+		return options!=null ? options.getSnippet() : null;
 	}
 	
 	public LatLng getPosition(){
-		return marker!=null ? marker.getPosition() : null;
+		if(marker!=null){
+			return marker.getPosition();
+		}
+		return options!=null ? options.getPosition() : null;
 	}
 	
 	public long getId(){